@@ -0,0 +1,135 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Images and helpers shared by the benchmarks
+ *
+ * @author ideras
+ */
+public class BenchmarkImages {
+
+    private BenchmarkImages() {
+    }
+
+    /*
+     * Returns random data where the last quarter is blank, as in the
+     * bitstream of a small design
+     */
+    public static byte[] randomImage(int size) {
+        byte[] data = new byte[size];
+        new Random(SEED).nextBytes(data);
+
+        for (int i = size - size / 4; i < size; i++) {
+            data[i] = (byte) 0xff;
+        }
+        return data;
+    }
+
+    public static File writeBin(byte[] data) throws IOException {
+        File file = File.createTempFile("bench", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /*
+     * Writes data as a .bit file for the Mimas V2 FPGA
+     */
+    public static File writeBit(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 256);
+        buffer.put(new byte[] {0x00, 0x09, 0x0f, (byte) 0xf0, 0x0f, (byte) 0xf0, 0x0f, (byte) 0xf0,
+                               0x0f, (byte) 0xf0, 0x00, 0x00, 0x01});
+        putField(buffer, 'a', "bench;UserID=0xFFFFFFFF");
+        putField(buffer, 'b', "6slx9csg324");
+        putField(buffer, 'c', "2017/01/01");
+        putField(buffer, 'd', "00:00:00");
+        buffer.put((byte) 'e');
+        buffer.putInt(data.length);
+
+        // The configuration data starts with the sync word
+        int dataStart = buffer.position();
+        buffer.put(data);
+        buffer.putInt(dataStart + 16, BitstreamParser.SYNC_WORD);
+
+        File file = File.createTempFile("bench", ".bit");
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.copyOf(buffer.array(), buffer.position()));
+        return file;
+    }
+
+    private static void putField(ByteBuffer buffer, char key, String value) {
+        byte[] bytes = (value + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        buffer.put((byte) key);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /*
+     * Listener that ignores everything
+     */
+    public static ProgrammingProgressListener quietListener() {
+        return new ProgrammingProgressListener() {
+            @Override
+            public void initProgress(int maxValue) {
+            }
+
+            @Override
+            public void updateProgress(int value) {
+            }
+
+            @Override
+            public void logMessage(String message) {
+            }
+
+            @Override
+            public void updateTitle(String message) {
+            }
+
+            @Override
+            public void errorMessage(String message) {
+            }
+
+            @Override
+            public void programmingDone() {
+            }
+        };
+    }
+
+    private static final long SEED = 0x4d696d6173L;
+}
@@ -0,0 +1,103 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building and queuing command frames: the padding done by sendCommand, the
+ * framing of spiSendBytes and the encoding of a complete page program.
+ *
+ * @author ideras
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandFramingBenchmark {
+
+    @Param({"true", "false"})
+    public boolean commandBatching;
+
+    @Setup
+    public void setUp() {
+        downloader = new MimasV2ConfigDownloader(new NullTransport(), null, BenchmarkImages.quietListener(), false);
+        downloader.setCommandBatching(commandBatching);
+        downloader.setEventDrivenReceive(false);
+
+        page = BenchmarkImages.randomImage(MimasV2ConfigDownloader.M25P16_PAGE_SIZE * 2);
+    }
+
+    @Benchmark
+    public void sendCommand() throws Exception {
+        downloader.sendCommand(SPI_PUT_CHAR);
+    }
+
+    @Benchmark
+    public void spiSendBytes() throws Exception {
+        downloader.spiSendBytes(page, 0, SPI_WRITE_SIZE);
+    }
+
+    @Benchmark
+    public int encodeSpiSendBytes() {
+        return CommandFrames.spiSendBytes(frames, 0, page, 0, SPI_WRITE_SIZE);
+    }
+
+    @Benchmark
+    public void pageProgram() throws Exception {
+        downloader.flashM25P16PageProgram(page, 0, MimasV2ConfigDownloader.M25P16_PAGE_SIZE, address);
+        address = (address + MimasV2ConfigDownloader.M25P16_PAGE_SIZE) & (MimasV2ConfigDownloader.M25P16_FLASH_SIZE - 1);
+    }
+
+    @Benchmark
+    public int encodePageProgram() {
+        return CommandFrames.flashPageProgram(frames, 0, page, 0, MimasV2ConfigDownloader.M25P16_PAGE_SIZE, address);
+    }
+
+    private MimasV2ConfigDownloader downloader;
+    private byte[] page;
+    private final byte[] frames = new byte[CommandFrames.PAGE_PROGRAM_SIZE];
+    private int address;
+
+    // Unpadded SPI put char command, as callers of sendCommand build them
+    private static final byte[] SPI_PUT_CHAR = {0x7e, MimasV2ConfigDownloader.CONFIG_OUT_PACKET_SPI_PUT_CHAR, 0x01, 0x05};
+    private static final int SPI_WRITE_SIZE = 64;
+}
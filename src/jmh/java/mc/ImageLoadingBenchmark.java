@@ -0,0 +1,102 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a programming file: hashing and parsing it on a cache miss or a
+ * hit, and reading the whole image in sector sized chunks.
+ *
+ * @author ideras
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageLoadingBenchmark {
+
+    @Param({"bin", "bit"})
+    public String format;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] data = BenchmarkImages.randomImage(IMAGE_SIZE);
+        file = format.equals("bit")? BenchmarkImages.writeBit(data) : BenchmarkImages.writeBin(data);
+
+        cache.prepare(file);
+    }
+
+    @Benchmark
+    public PreparedImage prepareMiss() throws Exception {
+        cache.clear();
+        return cache.prepare(file);
+    }
+
+    @Benchmark
+    public PreparedImage prepareHit() throws Exception {
+        return cache.prepare(file);
+    }
+
+    @Benchmark
+    public int readImage() throws Exception {
+        PreparedImage prepared = cache.prepare(file);
+        int sum = 0;
+
+        try (FlashImage image = prepared.open(file)) {
+            for (int address = 0; address < image.size(); address += buffer.length) {
+                int length = Math.min(buffer.length, image.size() - address);
+
+                image.read(address, buffer, 0, length);
+                sum += buffer[0];
+            }
+        }
+        return sum;
+    }
+
+    private File file;
+    private final PreparedImageCache cache = new PreparedImageCache(PreparedImageCache.DEFAULT_CAPACITY);
+    private final byte[] buffer = new byte[MimasV2ConfigDownloader.M25P16_SECTOR_SIZE];
+
+    // Size of a XC6SLX9 bitstream
+    private static final int IMAGE_SIZE = 340604;
+}
@@ -0,0 +1,116 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a whole image in pages and framing them, as the programming loop
+ * does, with the frames sent to a transport that drops them.  Nothing waits
+ * for the flash, so this is the host side cost of programming an image.
+ *
+ * @author ideras
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageFramingBenchmark {
+
+    // Size of a XC6SLX9 bitstream and of the whole flash
+    @Param({"340604", "2097152"})
+    public int imageSize;
+
+    @Setup
+    public void setUp() {
+        image = FlashImage.wrap(BenchmarkImages.randomImage(imageSize));
+
+        downloader = new MimasV2ConfigDownloader(new NullTransport(), null, BenchmarkImages.quietListener(), false);
+        downloader.setEventDrivenReceive(false);
+    }
+
+    /*
+     * Pages read and framed by the pipeline thread, as in programM25P16
+     */
+    @Benchmark
+    public int pipeline() throws Exception {
+        int pages = 0;
+
+        try (PageFramePipeline pipeline = new PageFramePipeline(image, address -> true, MimasV2ConfigDownloader.PIPELINE_DEPTH)) {
+            pipeline.start();
+
+            PageFramePipeline.PreparedPage page;
+            while ((page = pipeline.take()) != null) {
+                downloader.sendFrames(page.getFrames(), 0, page.getFrameBytes());
+                pipeline.release(page);
+                pages++;
+            }
+        }
+        downloader.flushCommands();
+        return pages;
+    }
+
+    /*
+     * The same work on the calling thread, one page at a time
+     */
+    @Benchmark
+    public int inline() throws IOException, ConfiguratorException {
+        int pages = 0;
+
+        for (int address = 0; address < imageSize; address += MimasV2ConfigDownloader.M25P16_PAGE_SIZE) {
+            int length = Math.min(MimasV2ConfigDownloader.M25P16_PAGE_SIZE, imageSize - address);
+
+            image.read(address, page, 0, length);
+            if (MimasV2ConfigDownloader.isBlank(page, 0, length)) {
+                continue;
+            }
+            downloader.flashM25P16PageProgram(page, 0, length, address);
+            pages++;
+        }
+        downloader.flushCommands();
+        return pages;
+    }
+
+    private FlashImage image;
+    private MimasV2ConfigDownloader downloader;
+    private final byte[] page = new byte[MimasV2ConfigDownloader.M25P16_PAGE_SIZE];
+}
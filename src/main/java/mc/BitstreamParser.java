@@ -0,0 +1,214 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the header of a Xilinx .bit file.  The header is a sequence of
+ * tagged fields: design name (a), part (b), date (c), time (d) and finally
+ * the configuration data (e), which is what gets written to the flash.
+ *
+ * @author ideras
+ */
+public class BitstreamParser {
+
+    private BitstreamParser() {
+    }
+
+    /**
+     * The fields found in a .bit file header.
+     */
+    public static class BitstreamInfo {
+
+        public String getDesignName() {
+            return designName;
+        }
+
+        public String getPartName() {
+            return partName;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        public String getTime() {
+            return time;
+        }
+
+        /*
+         * Position in the file of the first configuration data byte
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        private String designName = "";
+        private String partName = "";
+        private String date = "";
+        private String time = "";
+        private long dataOffset;
+        private int dataLength;
+    }
+
+    /*
+     * Returns true if the file starts with the .bit header magic
+     */
+    public static boolean isBitstream(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_MAGIC.length);
+
+        channel.read(buffer, 0);
+        if (buffer.position() != HEADER_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < HEADER_MAGIC.length; i++) {
+            if (buffer.get(i) != HEADER_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Parses and validates the header of a .bit file
+     */
+    public static BitstreamInfo parse(FileChannel channel) throws IOException, ConfiguratorException {
+        int headerSize = (int) Math.min(channel.size(), MAX_HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        }
+        header.flip();
+
+        if (!isBitstream(channel)) {
+            throw new ConfiguratorException("Not a Xilinx .bit file: invalid header");
+        }
+        header.position(HEADER_MAGIC.length);
+
+        BitstreamInfo info = new BitstreamInfo();
+        while (true) {
+            if (header.remaining() < 1) {
+                throw new ConfiguratorException("Invalid .bit file: the configuration data field is missing");
+            }
+            int key = header.get();
+
+            if (key == 'e') {
+                if (header.remaining() < 4) {
+                    throw new ConfiguratorException("Invalid .bit file: truncated header");
+                }
+                info.dataLength = header.getInt();
+                info.dataOffset = header.position();
+                break;
+            }
+
+            String value = readString(header);
+            switch (key) {
+                case 'a':
+                    info.designName = value;
+                    break;
+                case 'b':
+                    info.partName = value;
+                    break;
+                case 'c':
+                    info.date = value;
+                    break;
+                case 'd':
+                    info.time = value;
+                    break;
+                default:
+                    throw new ConfiguratorException("Invalid .bit file: unknown field '" + (char) key + "'");
+            }
+        }
+
+        if (info.dataLength <= 0 || info.dataOffset + info.dataLength > channel.size()) {
+            throw new ConfiguratorException("Invalid .bit file: data length " + info.dataLength
+                                            + " doesn't match the file size " + channel.size());
+        }
+        if (!info.partName.startsWith(EXPECTED_PART)) {
+            throw new ConfiguratorException("The bitstream is for part " + info.partName + ", Mimas V2 uses a XC6SLX9");
+        }
+        checkSyncWord(channel, info);
+
+        return info;
+    }
+
+    /*
+     * The sync word must come after a short padding of 0xFF bytes
+     */
+    private static void checkSyncWord(FileChannel channel, BitstreamInfo info) throws IOException, ConfiguratorException {
+        int length = Math.min(info.dataLength, SYNC_SEARCH_LENGTH);
+        ByteBuffer data = ByteBuffer.allocate(length);
+
+        while (data.hasRemaining() && channel.read(data, info.dataOffset + data.position()) > 0) {
+        }
+        data.flip();
+
+        for (int i = 0; i + 4 <= data.limit(); i++) {
+            if (data.getInt(i) == SYNC_WORD) {
+                return;
+            }
+        }
+        throw new ConfiguratorException("Invalid .bit file: sync word not found in the configuration data");
+    }
+
+    private static String readString(ByteBuffer header) throws ConfiguratorException {
+        if (header.remaining() < 2) {
+            throw new ConfiguratorException("Invalid .bit file: truncated header");
+        }
+        int length = header.getShort() & 0xffff;
+        if (header.remaining() < length) {
+            throw new ConfiguratorException("Invalid .bit file: truncated header");
+        }
+
+        byte[] value = new byte[length];
+        header.get(value);
+
+        // Strings are null terminated
+        int end = (length > 0 && value[length - 1] == 0)? length - 1 : length;
+        return new String(value, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    // Field 1 (9 bytes) and the length of field 2, which holds the key 'a'
+    private static final byte[] HEADER_MAGIC = {
+        0x00, 0x09, 0x0f, (byte) 0xf0, 0x0f, (byte) 0xf0, 0x0f, (byte) 0xf0, 0x0f, (byte) 0xf0, 0x00, 0x00, 0x01
+    };
+
+    public static final int SYNC_WORD = 0xAA995566;
+    public static final String EXPECTED_PART = "6slx9";
+
+    private static final int MAX_HEADER_SIZE = 1024;
+    private static final int SYNC_SEARCH_LENGTH = 256;
+}
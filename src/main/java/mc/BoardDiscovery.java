@@ -0,0 +1,336 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Finds the Mimas V2 boards connected to the system.  Every serial port is
+ * probed at the same time, reading the JEDEC ID of its SPI flash with a short
+ * response timeout, and the whole discovery is bounded by a deadline.  The
+ * results are cached per port until the SerialPortRegistry sees the port
+ * removed or added again, so only hotplugged ports are probed again.  A probe
+ * still running is awaited by the next discovery instead of probing the port
+ * twice.
+ *
+ * @author ideras
+ */
+public class BoardDiscovery {
+
+    public enum State {
+        /* Mimas V2 with its M25P16 flash */
+        MIMAS_V2,
+        /* The board answered but the flash is not a M25P16 */
+        UNKNOWN_FLASH,
+        /* Nothing answered the flash ID read */
+        NO_RESPONSE,
+        /* The port couldn't be opened, i.e. it's in use */
+        UNAVAILABLE,
+        /* The probe didn't finish before the deadline */
+        TIMEOUT
+    }
+
+    /**
+     * Result of probing one port
+     */
+    public static class BoardInfo {
+
+        BoardInfo(String portName, State state, int flashId, long probeNanos, String message) {
+            this.portName = portName;
+            this.state = state;
+            this.flashId = flashId;
+            this.probeNanos = probeNanos;
+            this.message = message;
+        }
+
+        public String getPortName() {
+            return portName;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isMimasV2() {
+            return state == State.MIMAS_V2;
+        }
+
+        /*
+         * JEDEC ID as read by MimasV2ConfigDownloader.readFlashId(), -1 if unknown
+         */
+        public int getFlashId() {
+            return flashId;
+        }
+
+        public long getProbeNanos() {
+            return probeNanos;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            String text = portName + ": " + state;
+            if (flashId >= 0) {
+                text += String.format(" (flash ID %06x)", flashId);
+            }
+            return (message != null)? text + " " + message : text;
+        }
+
+        private final String portName;
+        private final State state;
+        private final int flashId;
+        private final long probeNanos;
+        private final String message;
+    }
+
+    public BoardDiscovery() {
+        this(SerialPortRegistry.getDefault());
+    }
+
+    public BoardDiscovery(SerialPortRegistry registry) {
+        this.registry = registry;
+
+        // Whatever is on a port that came or went must be probed again
+        registry.addListener(new SerialPortRegistry.PortListener() {
+            @Override
+            public void portAdded(String portName) {
+                invalidate(portName);
+            }
+
+            @Override
+            public void portRemoved(String portName) {
+                invalidate(portName);
+            }
+        });
+    }
+
+    public SerialPortRegistry getRegistry() {
+        return registry;
+    }
+
+    public int getProbeTimeout() {
+        return probeTimeout;
+    }
+
+    /*
+     * Sets how long to wait for the board to answer the flash ID read, in
+     * milliseconds.  A board answers in a few milliseconds.
+     */
+    public void setProbeTimeout(int probeTimeout) {
+        this.probeTimeout = probeTimeout;
+    }
+
+    public int getDeadline() {
+        return deadline;
+    }
+
+    /*
+     * Sets the maximum time a discovery takes, in milliseconds.  Ports still
+     * being probed by then are reported as TIMEOUT, the next discovery waits
+     * for the same probe or takes its result from the cache.
+     */
+    public void setDeadline(int deadline) {
+        this.deadline = deadline;
+    }
+
+    /*
+     * Probes all the serial ports of the system
+     */
+    public List<BoardInfo> discover() {
+        return discover(registry.getPorts());
+    }
+
+    /*
+     * Probes the given ports, using the cached result for those already probed
+     */
+    public List<BoardInfo> discover(List<String> ports) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+        Map<String, Future<BoardInfo>> probes = new LinkedHashMap<>();
+
+        for (String port : ports) {
+            if (!cache.containsKey(port) && !probes.containsKey(port)) {
+                probes.put(port, startProbe(port));
+            }
+        }
+
+        List<BoardInfo> result = new ArrayList<>(ports.size());
+        for (String port : ports) {
+            BoardInfo info = cache.get(port);
+            Future<BoardInfo> probe = probes.get(port);
+
+            if (probe != null) {
+                info = await(port, probe, deadlineNanos);
+            }
+            result.add(info);
+        }
+        return result;
+    }
+
+    /*
+     * Returns the ports where a Mimas V2 was found
+     */
+    public List<String> findBoards() {
+        List<String> boards = new ArrayList<>();
+
+        for (BoardInfo info : discover()) {
+            if (info.isMimasV2()) {
+                boards.add(info.getPortName());
+            }
+        }
+        return boards;
+    }
+
+    public BoardInfo getCached(String portName) {
+        return cache.get(portName);
+    }
+
+    /*
+     * Forgets the result of a port, it's probed again by the next discovery.
+     * A probe running meanwhile doesn't cache its result.
+     */
+    public synchronized void invalidate(String portName) {
+        generations.merge(portName, 1L, Long::sum);
+        cache.remove(portName);
+        pending.remove(portName);
+    }
+
+    public synchronized void invalidateAll() {
+        allGeneration++;
+        cache.clear();
+        pending.clear();
+    }
+
+    /*
+     * Returns the probe running on the port, or starts one
+     */
+    private synchronized Future<BoardInfo> startProbe(String port) {
+        Future<BoardInfo> probe = pending.get(port);
+
+        if (probe == null || probe.isDone()) {
+            long generation = getGeneration(port);
+            probe = PROBE_EXECUTOR.submit(() -> probe(port, generation));
+            pending.put(port, probe);
+        }
+        return probe;
+    }
+
+    /*
+     * Changes every time the port is invalidated
+     */
+    private long getGeneration(String port) {
+        return allGeneration + generations.getOrDefault(port, 0L);
+    }
+
+    private BoardInfo await(String port, Future<BoardInfo> probe, long deadlineNanos) {
+        try {
+            return probe.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // The probe closes the port when it finishes
+            return new BoardInfo(port, State.TIMEOUT, -1, TimeUnit.MILLISECONDS.toNanos(deadline), null);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new BoardInfo(port, State.TIMEOUT, -1, 0, null);
+        } catch (ExecutionException ex) {
+            return new BoardInfo(port, State.UNAVAILABLE, -1, 0, String.valueOf(ex.getCause()));
+        }
+    }
+
+    /*
+     * Probes a port and caches the result, even if the discovery that
+     * started the probe didn't wait for it.  Busy ports are tried again by
+     * the next discovery, and so are ports invalidated while being probed.
+     */
+    private BoardInfo probe(String port, long generation) {
+        BoardInfo info = probePort(port);
+
+        synchronized (this) {
+            if (info.getState() != State.UNAVAILABLE && getGeneration(port) == generation) {
+                cache.put(port, info);
+            }
+        }
+        return info;
+    }
+
+    private BoardInfo probePort(String port) {
+        long startTime = System.nanoTime();
+        Transport transport;
+
+        try {
+            transport = SerialPorts.openTransport(port, SerialPorts.DEFAULT_BAUD_RATE);
+        } catch (ConfiguratorException ex) {
+            return new BoardInfo(port, State.UNAVAILABLE, -1, System.nanoTime() - startTime, ex.getMessage());
+        }
+
+        try {
+            MimasV2ConfigDownloader downloader = new MimasV2ConfigDownloader(transport, null, null, false);
+            downloader.setResponseTimeout(probeTimeout);
+
+            int id = downloader.readFlashId();
+            State state = (id == MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16)? State.MIMAS_V2 : State.UNKNOWN_FLASH;
+
+            return new BoardInfo(port, state, id, System.nanoTime() - startTime, null);
+        } catch (ConfiguratorException | IOException ex) {
+            return new BoardInfo(port, State.NO_RESPONSE, -1, System.nanoTime() - startTime, ex.getMessage());
+        } finally {
+            transport.close();
+        }
+    }
+
+    public static final int PROBE_TIMEOUT = 150;
+    public static final int DEADLINE = 800;
+
+    /* Probes mostly wait for the ports, one thread per port */
+    private static final ExecutorService PROBE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "board-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, BoardInfo> cache = new ConcurrentHashMap<>();
+    private final Map<String, Future<BoardInfo>> pending = new HashMap<>();
+    private final Map<String, Long> generations = new HashMap<>();
+    private long allGeneration;
+    private final SerialPortRegistry registry;
+    private int probeTimeout = PROBE_TIMEOUT;
+    private int deadline = DEADLINE;
+}
@@ -0,0 +1,216 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for the flash to finish a program or erase operation.  The first poll
+ * is scheduled from an estimate of how long the operation takes and further
+ * polls back off exponentially up to the maximum time given in the datasheet.
+ * The estimates start at the typical datasheet values and are adjusted from
+ * the completion times observed on the device, within the datasheet maximum.
+ *
+ * @author ideras
+ */
+public class BusyPoller {
+
+    /*
+     * M25P16 timings in microseconds, from the datasheet
+     */
+    public enum Operation {
+        PAGE_PROGRAM(1400, 5000),
+        SECTOR_ERASE(600000, 3000000),
+        BULK_ERASE(13000000, 40000000);
+
+        Operation(long typicalMicros, long maxMicros) {
+            this.typicalNanos = typicalMicros * 1000;
+            this.maxNanos = maxMicros * 1000;
+        }
+
+        public long getTypicalNanos() {
+            return typicalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        private final long typicalNanos;
+        private final long maxNanos;
+    }
+
+    /*
+     * Reads the status register of the flash
+     */
+    public interface StatusReader {
+        int readStatus() throws ConfiguratorException, IOException;
+    }
+
+    public BusyPoller() {
+        estimateNanos = new long[Operation.values().length];
+        for (Operation op : Operation.values()) {
+            estimateNanos[op.ordinal()] = op.getTypicalNanos();
+        }
+    }
+
+    /*
+     * Waits until the Write In Progress bit is cleared.
+     * @param op The operation in progress
+     * @param startNanos The time the operation was started (System.nanoTime)
+     * @param reader Used to read the status register
+     */
+    public void waitUntilReady(Operation op, long startNanos, StatusReader reader) throws ConfiguratorException, IOException {
+        long estimate = estimateNanos[op.ordinal()];
+        long deadline = startNanos + Math.max(op.getMaxNanos() * TIMEOUT_FACTOR, MIN_TIMEOUT_NANOS);
+        long interval = Math.max(minIntervalNanos, estimate / 8);
+        long maxInterval = Math.max(minIntervalNanos, op.getMaxNanos() / 8);
+        long lastBusyPoll = 0;
+
+        // Don't poll before the operation is expected to be done
+        sleepUntil(startNanos + estimate - averagePollNanos());
+
+        while (true) {
+            long pollStart = System.nanoTime();
+            int status = reader.readStatus();
+            long pollEnd = System.nanoTime();
+            long pollMiddle = (pollStart + pollEnd) / 2;
+
+            linkNanos += pollEnd - pollStart;
+            pollCount++;
+
+            if ((status & STATUS_WIP) == 0) {
+                if (lastBusyPoll == 0) {
+                    /*
+                     * Already done at the first poll, the operation took less
+                     * than that and maybe a lot less: poll a step earlier next time
+                     */
+                    long observed = pollMiddle - startNanos;
+                    estimate = Math.min(estimate, observed) - Math.max(minIntervalNanos, estimate / 8);
+                } else {
+                    // It finished between the last busy poll and this one
+                    long observed = (lastBusyPoll + pollMiddle) / 2 - startNanos;
+                    estimate = (estimate * (EWMA_WEIGHT - 1) + observed) / EWMA_WEIGHT;
+                }
+                estimateNanos[op.ordinal()] = Math.max(minIntervalNanos, Math.min(estimate, op.getMaxNanos()));
+                busyNanos += pollEnd - startNanos;
+                return;
+            }
+            lastBusyPoll = pollMiddle;
+
+            // Only a status read after the deadline proves the flash is stuck
+            if (pollStart > deadline) {
+                busyNanos += pollEnd - startNanos;
+                throw new ConfiguratorException("Timeout waiting for flash " + op.name().toLowerCase().replace('_', ' ') + " to complete");
+            }
+
+            sleepUntil(pollEnd + interval);
+            interval = Math.min(interval * 2, maxInterval);
+        }
+    }
+
+    /*
+     * Parks until the given time.  Thread.sleep rounds a sub-millisecond delay
+     * up to a whole millisecond, longer than a page program.
+     */
+    private void sleepUntil(long wakeUpNanos) {
+        long sleepStart = System.nanoTime();
+        long delay = wakeUpNanos - sleepStart;
+
+        while (delay > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(delay);
+            delay = wakeUpNanos - System.nanoTime();
+        }
+        sleepNanos += System.nanoTime() - sleepStart;
+    }
+
+    private long averagePollNanos() {
+        return (pollCount > 0)? linkNanos / pollCount : 0;
+    }
+
+    public long getMinIntervalNanos() {
+        return minIntervalNanos;
+    }
+
+    /*
+     * Sets the shortest time between two status polls.  Polling faster than
+     * the link round trip only queues requests.
+     */
+    public void setMinIntervalNanos(long minIntervalNanos) {
+        this.minIntervalNanos = minIntervalNanos;
+    }
+
+    /*
+     * Returns the current completion time estimate for the given operation
+     */
+    public long getEstimateNanos(Operation op) {
+        return estimateNanos[op.ordinal()];
+    }
+
+    /*
+     * Total time spent waiting for the flash, from the start of each operation
+     * until it was seen completed
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /*
+     * Time spent sleeping between polls
+     */
+    public long getSleepNanos() {
+        return sleepNanos;
+    }
+
+    /*
+     * Time spent reading the status register over the link
+     */
+    public long getLinkNanos() {
+        return linkNanos;
+    }
+
+    public long getPollCount() {
+        return pollCount;
+    }
+
+    private final long[] estimateNanos;
+    private long busyNanos;
+    private long sleepNanos;
+    private long linkNanos;
+    private long pollCount;
+    private long minIntervalNanos = MIN_INTERVAL_NANOS;
+
+    public static final int STATUS_WIP = 0x01;
+    public static final long MIN_INTERVAL_NANOS = 200000;
+
+    private static final long TIMEOUT_FACTOR = 2;
+    // The command is written at the start, but a busy host or link can delay it reaching the flash
+    private static final long MIN_TIMEOUT_NANOS = 250000000L;
+    private static final long EWMA_WEIGHT = 4;
+}
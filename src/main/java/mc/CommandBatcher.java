@@ -0,0 +1,107 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Queues command frames that don't expect a response and sends them to the
+ * board together.  The queued bytes are written in chunks no larger than the
+ * transaction size the board firmware accepts (30 bytes) and the stream is
+ * flushed once.  The queue is flushed when it gets full or when the caller
+ * needs the link to read a response.
+ *
+ * The chunks pack the 70 byte frames end to end instead of taking three
+ * writes per frame, a page program takes 40 writes instead of 51.  Larger
+ * writes would save more but the firmware isn't known to accept them.
+ *
+ * @author ideras
+ */
+public class CommandBatcher {
+
+    public CommandBatcher(OutputStream out, int capacity, int maxWriteSize) {
+        this.out = out;
+        this.buffer = new byte[capacity];
+        this.maxWriteSize = maxWriteSize;
+        this.count = 0;
+    }
+
+    /*
+     * Adds a frame to the queue.  If the frame doesn't fit, the queued frames
+     * are sent first.
+     */
+    public void queue(byte[] frame, int offset, int length) throws IOException {
+        if (length > buffer.length) {
+            flush();
+            write(frame, offset, length);
+            out.flush();
+            return;
+        }
+        if (count + length > buffer.length) {
+            flush();
+        }
+        System.arraycopy(frame, offset, buffer, count, length);
+        count += length;
+    }
+
+    /*
+     * Sends all the queued frames
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            write(buffer, 0, count);
+            out.flush();
+            count = 0;
+        }
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i += maxWriteSize) {
+            out.write(data, offset + i, Math.min(maxWriteSize, length - i));
+            writeCount++;
+        }
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /*
+     * Returns the number of write calls made on the output stream
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int maxWriteSize;
+    private int count;
+    private long writeCount;
+}
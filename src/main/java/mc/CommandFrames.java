@@ -0,0 +1,172 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.util.Arrays;
+import static mc.MimasV2ConfigDownloader.*;
+
+/**
+ * Builds the 70 byte command frames of the Mimas V2 protocol in a caller
+ * supplied buffer.  Every method writes one or more complete, padded frames at
+ * pos and returns the position after them.
+ *
+ * @author ideras
+ */
+public class CommandFrames {
+
+    private CommandFrames() {
+    }
+
+    /*
+     * Pads the frame that starts at frameStart up to 70 bytes
+     */
+    public static int pad(byte[] dst, int frameStart, int pos) {
+        int end = frameStart + CDC_DATA_OUT_EP_SIZE;
+
+        Arrays.fill(dst, pos, end, (byte) ' ');
+        return end;
+    }
+
+    private static int header(byte[] dst, int pos, int packetType) {
+        dst[pos] = 0x7e;
+        dst[pos + 1] = (byte) packetType;
+        dst[pos + 2] = 0x01;
+        return pos + 3;
+    }
+
+    public static int spiOpen(byte[] dst, int pos) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, SyncMode, BusMode, SmpPhase
+        //                        ~    , 0x00      , 0x01  , 0x02    , 0x00   , 0x00
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_OPEN);
+        dst[p] = 0x02;
+        dst[p + 1] = 0x00;
+        dst[p + 2] = 0x00;
+        return pad(dst, pos, p + 3);
+    }
+
+    public static int spiClose(byte[] dst, int pos) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum
+        //                        ~    , 0x01      , 0x01
+        return pad(dst, pos, header(dst, pos, CONFIG_OUT_PACKET_SPI_CLOSE));
+    }
+
+    public static int spiSetIoDirection(byte[] dst, int pos, int io, int direction) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, Io, Direction
+        //                        ~    , 0x08      , 0x01  , io, direction
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_SET_IO_DIR);
+        dst[p] = (byte) io;
+        dst[p + 1] = (byte) direction;
+        return pad(dst, pos, p + 2);
+    }
+
+    public static int spiSetIoValue(byte[] dst, int pos, int io, int value) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, Io, Value
+        //                        ~    , 0x09      , 0x01  , io, value
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_SET_IO_VALUE);
+        dst[p] = (byte) io;
+        dst[p + 1] = (byte) value;
+        return pad(dst, pos, p + 2);
+    }
+
+    public static int spiSendByte(byte[] dst, int pos, int ch) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, Char
+        //                        ~    , 0x07      , 0x01  , Char
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_PUT_CHAR);
+        dst[p] = (byte) ch;
+        return pad(dst, pos, p + 1);
+    }
+
+    public static int spiSendBytes(byte[] dst, int pos, byte[] data, int offset, int length) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, Char
+        //                        ~    , 0x03      , 0x01  , Length, Res0, Res1, data
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_PUTSTRING);
+        dst[p] = (byte) length;
+        dst[p + 1] = 0x0;
+        dst[p + 2] = 0x0;
+        System.arraycopy(data, offset, dst, p + 3, length);
+        return pad(dst, pos, p + 3 + length);
+    }
+
+    public static int spiGetBytes(byte[] dst, int pos, int length) {
+        // Packet Structure : Sync Byte, PacketType, SpiNum, Length
+        //                        ~    , 0x02      , 0x01  , Length
+        int p = header(dst, pos, CONFIG_OUT_PACKET_SPI_GETSTRING);
+        dst[p] = (byte) length;
+        return pad(dst, pos, p + 1);
+    }
+
+    /*
+     * Toggles Chip Select to get the SPI flash to a known state
+     */
+    public static int toggleCS(byte[] dst, int pos) {
+        pos = spiSetIoDirection(dst, pos, CONFIG_IO_PIN_CS, IO_DIRECTION_OUT);
+        pos = spiSetIoValue(dst, pos, CONFIG_IO_PIN_CS, 1);
+        return spiSetIoValue(dst, pos, CONFIG_IO_PIN_CS, 0);
+    }
+
+    /*
+     * Sends a flash opcode followed by a 24 bit address
+     */
+    public static int flashCommand(byte[] dst, int pos, int opcode, int address) {
+        pos = spiSendByte(dst, pos, opcode);
+        pos = spiSendByte(dst, pos, (address >> 16) & 0xff);
+        pos = spiSendByte(dst, pos, (address >> 8) & 0xff);
+        return spiSendByte(dst, pos, address & 0xff);
+    }
+
+    /*
+     * Write enable sequence of the M25P16
+     */
+    public static int flashWriteEnable(byte[] dst, int pos) {
+        pos = toggleCS(dst, pos);
+        pos = spiSendByte(dst, pos, M25P16_WRITE_ENABLE);
+        return spiSetIoValue(dst, pos, CONFIG_IO_PIN_CS, 1);
+    }
+
+    /*
+     * Complete page program sequence of the M25P16: write enable, page program
+     * command and the data 64 bytes at a time
+     */
+    public static int flashPageProgram(byte[] dst, int pos, byte[] data, int offset, int length, int address) {
+        pos = flashWriteEnable(dst, pos);
+        pos = toggleCS(dst, pos);
+        pos = flashCommand(dst, pos, M25P16_PAGE_PROGRAM, address);
+
+        while (length != 0) {
+            int count = (length > 64) ? 64 : length;
+            pos = spiSendBytes(dst, pos, data, offset, count);
+
+            offset += count;
+            length -= count;
+        }
+        return spiSetIoValue(dst, pos, CONFIG_IO_PIN_CS, 1);
+    }
+
+    // Size of the longest page program sequence: 256 data bytes sent in 4 frames
+    public static final int PAGE_PROGRAM_SIZE = 17 * CDC_DATA_OUT_EP_SIZE;
+}
@@ -0,0 +1,157 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses the cheapest way to erase the flash sectors that need it: nothing at
+ * all, a set of 64 KB sector erases or a single bulk erase.  A bulk erase is
+ * only chosen when no sector holding data to preserve would be lost.
+ *
+ * @author ideras
+ */
+public class ErasePlanner {
+
+    public enum Strategy {
+        NONE, SECTORS, BULK
+    }
+
+    /**
+     * The result of the planning: how to erase and what it is expected to cost.
+     */
+    public static class ErasePlan {
+
+        ErasePlan(Strategy strategy, List<Integer> sectors, long estimatedNanos) {
+            this.strategy = strategy;
+            this.sectors = Collections.unmodifiableList(sectors);
+            this.estimatedNanos = estimatedNanos;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        /*
+         * The sectors to erase when the strategy is SECTORS
+         */
+        public List<Integer> getSectors() {
+            return sectors;
+        }
+
+        public long getEstimatedNanos() {
+            return estimatedNanos;
+        }
+
+        @Override
+        public String toString() {
+            switch (strategy) {
+                case NONE:
+                    return "nothing to erase";
+                case BULK:
+                    return String.format("bulk erase, estimated %.1f s", estimatedNanos / 1e9);
+                default:
+                    return String.format("%d sector(s) %s, estimated %.1f s", sectors.size(),
+                                         describeSectors(sectors), estimatedNanos / 1e9);
+            }
+        }
+
+        private final Strategy strategy;
+        private final List<Integer> sectors;
+        private final long estimatedNanos;
+    }
+
+    /*
+     * @param busyPoller Provides the current erase time estimates of the device
+     */
+    public ErasePlanner(BusyPoller busyPoller) {
+        this.busyPoller = busyPoller;
+    }
+
+    /*
+     * @param needErase The sectors that have to be erased
+     * @param preserve The sectors whose contents must not be erased
+     */
+    public ErasePlan plan(boolean[] needErase, boolean[] preserve) {
+        List<Integer> sectors = new ArrayList<>();
+        boolean canBulkErase = true;
+
+        for (int sector = 0; sector < needErase.length; sector++) {
+            if (needErase[sector]) {
+                sectors.add(sector);
+            } else if (preserve[sector]) {
+                canBulkErase = false;
+            }
+        }
+
+        if (sectors.isEmpty()) {
+            return new ErasePlan(Strategy.NONE, sectors, 0);
+        }
+
+        long sectorCost = sectors.size() * (busyPoller.getEstimateNanos(BusyPoller.Operation.SECTOR_ERASE) + COMMAND_OVERHEAD_NANOS);
+        long bulkCost = busyPoller.getEstimateNanos(BusyPoller.Operation.BULK_ERASE) + COMMAND_OVERHEAD_NANOS;
+
+        if (canBulkErase && bulkCost < sectorCost) {
+            return new ErasePlan(Strategy.BULK, sectors, bulkCost);
+        }
+        return new ErasePlan(Strategy.SECTORS, sectors, sectorCost);
+    }
+
+    /*
+     * Formats a list of sectors as ranges, i.e. (0-4, 7)
+     */
+    static String describeSectors(List<Integer> sectors) {
+        StringBuilder sb = new StringBuilder("(");
+        int i = 0;
+
+        while (i < sectors.size()) {
+            int first = sectors.get(i);
+            int last = first;
+
+            while (i + 1 < sectors.size() && sectors.get(i + 1) == last + 1) {
+                last = sectors.get(++i);
+            }
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(first);
+            if (last != first) {
+                sb.append('-').append(last);
+            }
+            i++;
+        }
+        return sb.append(')').toString();
+    }
+
+    private final BusyPoller busyPoller;
+
+    // Time to send the erase command and read back the status
+    private static final long COMMAND_OVERHEAD_NANOS = 20000000;
+}
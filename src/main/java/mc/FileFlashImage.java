@@ -0,0 +1,103 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Image backed by a region of a file, read with positional FileChannel reads.
+ * Positional reads don't share state, so several threads can read at once.
+ *
+ * @author ideras
+ */
+public class FileFlashImage implements FlashImage {
+
+    public FileFlashImage(File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), 0, -1);
+    }
+
+    /*
+     * @param channel The file, it is closed with the image
+     * @param start Position in the file of the first byte of the image
+     * @param size Size of the image or -1 to use the rest of the file
+     */
+    public FileFlashImage(FileChannel channel, long start, int size) throws IOException {
+        long available = channel.size() - start;
+
+        if (size < 0) {
+            if (available > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException("File too large");
+            }
+            size = (int) available;
+        } else if (size > available) {
+            channel.close();
+            throw new EOFException("The file is shorter than the image it should contain");
+        }
+        this.channel = channel;
+        this.start = start;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void read(int address, byte[] buffer, int offset, int length) throws IOException {
+        if (address < 0 || address + length > size) {
+            throw new IndexOutOfBoundsException("Read outside the image: " + address + "+" + length);
+        }
+
+        // A single read may return less than requested
+        ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+        long position = start + address;
+        while (dst.hasRemaining()) {
+            int count = channel.read(dst, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private final FileChannel channel;
+    private final long start;
+    private final int size;
+}
@@ -0,0 +1,195 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Reads a range of the flash of a board into a file.  The data is read with
+ * pipelined requests and written to the file as it arrives, one sector at a
+ * time, while its SHA-256 is computed.  The FPGA is held in reset during the
+ * read and configures itself again from the flash afterwards, also when the
+ * read fails.  The file is only replaced by a complete dump.
+ *
+ * @author ideras
+ */
+public class FlashDumper {
+
+    /**
+     * Outcome of a dump
+     */
+    public static class DumpResult {
+
+        DumpResult(int address, int length, long elapsedNanos, String sha256) {
+            this.address = address;
+            this.length = length;
+            this.elapsedNanos = elapsedNanos;
+            this.sha256 = sha256;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /*
+         * Bytes per second read from the flash
+         */
+        public double getThroughput() {
+            return length / (elapsedNanos / 1e9);
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes from 0x%06X in %.2f s (%.1f KB/s), SHA-256 %s",
+                                 length, address, elapsedNanos / 1e9, getThroughput() / 1024, sha256);
+        }
+
+        private final int address;
+        private final int length;
+        private final long elapsedNanos;
+        private final String sha256;
+    }
+
+    public FlashDumper(MimasV2ConfigDownloader downloader, ProgrammingProgressListener listener) {
+        this.downloader = downloader;
+        this.listener = listener;
+    }
+
+    /*
+     * Writes length bytes of flash starting at address to the file, replacing it
+     */
+    public DumpResult dump(int address, int length, File file) throws ConfiguratorException, IOException {
+        if (address < 0 || length <= 0 || (long) address + length > MimasV2ConfigDownloader.M25P16_FLASH_SIZE) {
+            throw new ConfiguratorException(String.format("Invalid range 0x%06X+0x%X, the flash size is 0x%X bytes",
+                                                          address, length, MimasV2ConfigDownloader.M25P16_FLASH_SIZE));
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        // The dump is written next to the file and replaces it only once complete
+        File partFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + PART_SUFFIX);
+        DumpResult result;
+        boolean released = false;
+
+        try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Set PROGB to output
+            downloader.spiSetIoDirection(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, MimasV2ConfigDownloader.IO_DIRECTION_OUT);
+
+            // Pull PROGB Low, the FPGA must not drive the SPI bus
+            downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, 0);
+
+            // Open SPI port
+            downloader.spiOpen();
+
+            listener.updateTitle("Reading flash...");
+            listener.initProgress(length);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MimasV2ConfigDownloader.M25P16_SECTOR_SIZE);
+            long startTime = System.nanoTime();
+
+            downloader.flashM25P16Read(address, length, (blockAddress, data, offset, count) -> {
+                buffer.put(data, offset, count);
+                digest.update(data, offset, count);
+
+                if (!buffer.hasRemaining()) {
+                    writeFully(channel, buffer);
+                    listener.updateProgress(blockAddress + count - address);
+                }
+                return true;
+            });
+            writeFully(channel, buffer);
+            long elapsed = System.nanoTime() - startTime;
+            listener.updateProgress(length);
+
+            release();
+            released = true;
+            result = new DumpResult(address, length, elapsed, PreparedImageCache.toHex(digest.digest()));
+        } finally {
+            if (!released) {
+                // The error of the read is the one reported
+                try {
+                    release();
+                } catch (ConfiguratorException | IOException ex) {
+                }
+                Files.deleteIfExists(partFile.toPath());
+            }
+        }
+
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return result;
+    }
+
+    /*
+     * Sets CS to input and de-asserts PROGB, the FPGA configures itself again
+     */
+    private void release() throws ConfiguratorException, IOException {
+        downloader.spiSetIoDirection(MimasV2ConfigDownloader.CONFIG_IO_PIN_CS, MimasV2ConfigDownloader.IO_DIRECTION_IN);
+        downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, 1);
+        downloader.flushCommands();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private final MimasV2ConfigDownloader downloader;
+    private final ProgrammingProgressListener listener;
+
+    private static final String PART_SUFFIX = ".part";
+}
@@ -0,0 +1,87 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The contents to write to the flash, starting at address 0.  The data is read
+ * on demand so an image never has to be loaded in memory as a whole.
+ *
+ * @author ideras
+ */
+public interface FlashImage extends Closeable {
+
+    /*
+     * Returns the size of the image in bytes
+     */
+    int size();
+
+    /*
+     * Reads length bytes of the image starting at address
+     */
+    void read(int address, byte[] buffer, int offset, int length) throws IOException;
+
+    /*
+     * Returns true if the image defines any byte of the range.  The flash
+     * contents of ranges an image doesn't define are left as they are.
+     */
+    default boolean isDefined(int address, int length) {
+        return true;
+    }
+
+    /*
+     * Opens a raw binary image file
+     */
+    static FlashImage open(File file) throws IOException {
+        return new FileFlashImage(file);
+    }
+
+    /*
+     * Returns an image backed by an array
+     */
+    static FlashImage wrap(byte[] data) {
+        return new FlashImage() {
+            @Override
+            public int size() {
+                return data.length;
+            }
+
+            @Override
+            public void read(int address, byte[] buffer, int offset, int length) {
+                System.arraycopy(data, address, buffer, offset, length);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
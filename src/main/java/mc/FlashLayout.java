@@ -0,0 +1,346 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The images to write to the flash and their addresses.  A layout is read
+ * from a manifest (.layout file) with one "offset path" line per image, i.e.
+ * a golden bitstream at 0 and an application image or data at a later sector:
+ *
+ *   # offset   file (relative to the manifest)
+ *   0x000000   golden.bit
+ *   0x100000   app.bin
+ *
+ * Every image must start on a sector and no two images may share a sector,
+ * so erasing one never touches another.  Any other file is a layout with a
+ * single image at address 0.
+ *
+ * @author ideras
+ */
+public class FlashLayout {
+
+    /**
+     * One image of the layout
+     */
+    public static class Entry {
+
+        Entry(int offset, File file, PreparedImage image) {
+            this.offset = offset;
+            this.file = file;
+            this.image = image;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public PreparedImage getImage() {
+            return image;
+        }
+
+        /*
+         * Address after the last byte of the image
+         */
+        public int getEnd() {
+            return offset + image.getDataLength();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("0x%06X-0x%06X %s: %s", offset, getEnd() - 1, file.getName(), image);
+        }
+
+        private final int offset;
+        private final File file;
+        private final PreparedImage image;
+    }
+
+    private FlashLayout(List<Entry> entries, String contentHash) {
+        this.entries = entries;
+        this.contentHash = contentHash;
+    }
+
+    public static boolean isManifest(File file) {
+        return file.getName().toLowerCase().endsWith(MANIFEST_EXTENSION);
+    }
+
+    /*
+     * Loads a layout manifest, or a single image file to write at address 0
+     */
+    public static FlashLayout load(File file, PreparedImageCache imageCache) throws IOException, ConfiguratorException {
+        if (!isManifest(file)) {
+            PreparedImage image = imageCache.prepare(file);
+            return new FlashLayout(Collections.singletonList(new Entry(0, file, image)), image.getContentHash());
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        File baseDirectory = file.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+", 2);
+                if (fields.length != 2) {
+                    throw new ConfiguratorException(file.getName() + ":" + lineNumber + ": expected an offset and a file name");
+                }
+                int offset = parseOffset(file, lineNumber, fields[0]);
+
+                File imageFile = new File(fields[1]);
+                if (!imageFile.isAbsolute()) {
+                    imageFile = new File(baseDirectory, fields[1]);
+                }
+                if (!imageFile.isFile()) {
+                    throw new ConfiguratorException(file.getName() + ":" + lineNumber + ": cannot read " + imageFile);
+                }
+                entries.add(new Entry(offset, imageFile, imageCache.prepare(imageFile)));
+            }
+        }
+
+        if (entries.isEmpty()) {
+            throw new ConfiguratorException("The layout " + file.getName() + " has no images");
+        }
+        entries.sort(Comparator.comparingInt(Entry::getOffset));
+        validate(entries);
+
+        return new FlashLayout(Collections.unmodifiableList(entries), hash(entries));
+    }
+
+    private static int parseOffset(File file, int lineNumber, String value) throws ConfiguratorException {
+        try {
+            long offset = (value.startsWith("0x") || value.startsWith("0X"))? Long.parseLong(value.substring(2), 16)
+                                                                            : Long.parseLong(value);
+            if (offset < 0 || offset >= MimasV2ConfigDownloader.M25P16_FLASH_SIZE) {
+                throw new ConfiguratorException(file.getName() + ":" + lineNumber + ": offset " + value + " is outside the flash");
+            }
+            return (int) offset;
+        } catch (NumberFormatException ex) {
+            throw new ConfiguratorException(file.getName() + ":" + lineNumber + ": invalid offset " + value);
+        }
+    }
+
+    /*
+     * Checks the entries, sorted by offset, fit in the flash without sharing sectors
+     */
+    private static void validate(List<Entry> entries) throws ConfiguratorException {
+        Entry previous = null;
+
+        for (Entry entry : entries) {
+            if (entry.getOffset() % MimasV2ConfigDownloader.M25P16_SECTOR_SIZE != 0) {
+                throw new ConfiguratorException(String.format("%s at 0x%06X doesn't start on a sector (sectors are %d KB)",
+                                                              entry.getFile().getName(), entry.getOffset(),
+                                                              MimasV2ConfigDownloader.M25P16_SECTOR_SIZE / 1024));
+            }
+            if (entry.getEnd() > MimasV2ConfigDownloader.M25P16_FLASH_SIZE) {
+                throw new ConfiguratorException(String.format("%s at 0x%06X ends at 0x%06X, after the end of the flash",
+                                                              entry.getFile().getName(), entry.getOffset(), entry.getEnd()));
+            }
+
+            if (previous != null) {
+                if (previous.getEnd() > entry.getOffset()) {
+                    throw new ConfiguratorException(String.format("%s (0x%06X-0x%06X) overlaps %s at 0x%06X",
+                                                                  previous.getFile().getName(), previous.getOffset(),
+                                                                  previous.getEnd() - 1, entry.getFile().getName(),
+                                                                  entry.getOffset()));
+                }
+                if (sectorEnd(previous.getEnd()) > entry.getOffset()) {
+                    throw new ConfiguratorException(String.format("%s and %s share the sector at 0x%06X",
+                                                                  previous.getFile().getName(), entry.getFile().getName(),
+                                                                  entry.getOffset()));
+                }
+            }
+            previous = entry;
+        }
+    }
+
+    private static int sectorEnd(int address) {
+        int sectorSize = MimasV2ConfigDownloader.M25P16_SECTOR_SIZE;
+        return (address + sectorSize - 1) / sectorSize * sectorSize;
+    }
+
+    /*
+     * The SHA-256 of the offsets and content hashes of the images
+     */
+    private static String hash(List<Entry> entries) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        for (Entry entry : entries) {
+            digest.update((entry.getOffset() + ":" + entry.getImage().getContentHash() + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        return PreparedImageCache.toHex(digest.digest());
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public boolean isSingleImage() {
+        return entries.size() == 1 && entries.get(0).getOffset() == 0;
+    }
+
+    /*
+     * Identifies the contents of the whole layout, the hash of the file for
+     * a single image
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /*
+     * Address after the last byte of the last image
+     */
+    public int getSize() {
+        return entries.get(entries.size() - 1).getEnd();
+    }
+
+    /*
+     * Opens the flash data of all the images as a single image starting at
+     * address 0.  The gaps between images are not defined.
+     */
+    public FlashImage open() throws IOException {
+        if (isSingleImage()) {
+            return entries.get(0).getImage().open(entries.get(0).getFile());
+        }
+
+        FlashImage[] images = new FlashImage[entries.size()];
+        try {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = entries.get(i).getImage().open(entries.get(i).getFile());
+            }
+        } catch (IOException ex) {
+            closeAll(images);
+            throw ex;
+        }
+        return new LayoutImage(images);
+    }
+
+    private static void closeAll(FlashImage[] images) {
+        for (FlashImage image : images) {
+            if (image != null) {
+                try {
+                    image.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (isSingleImage()) {
+            return entries.get(0).getImage().toString();
+        }
+        return "Layout of " + entries.size() + " images, " + getSize() + " bytes";
+    }
+
+    /*
+     * The images of the layout at their offsets, 0xFF elsewhere
+     */
+    private class LayoutImage implements FlashImage {
+
+        LayoutImage(FlashImage[] images) {
+            this.images = images;
+        }
+
+        @Override
+        public int size() {
+            return getSize();
+        }
+
+        @Override
+        public void read(int address, byte[] buffer, int offset, int length) throws IOException {
+            Arrays.fill(buffer, offset, offset + length, (byte) 0xFF);
+
+            int end = address + length;
+            for (int i = 0; i < images.length; i++) {
+                Entry entry = entries.get(i);
+                int start = Math.max(address, entry.getOffset());
+                int stop = Math.min(end, entry.getEnd());
+
+                if (start < stop) {
+                    images[i].read(start - entry.getOffset(), buffer, offset + start - address, stop - start);
+                }
+            }
+        }
+
+        @Override
+        public boolean isDefined(int address, int length) {
+            for (Entry entry : entries) {
+                if (address < entry.getEnd() && entry.getOffset() < address + length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closeAll(images);
+        }
+
+        private final FlashImage[] images;
+    }
+
+    public static final String MANIFEST_EXTENSION = ".layout";
+
+    private final List<Entry> entries;
+    private final String contentHash;
+}
@@ -0,0 +1,125 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * What the programmer last wrote to the flash of a board: the digest of each
+ * sector, as computed by SectorDigests.  One file per board in the cache
+ * directory, with a header line followed by "S <sector> <sha256>" lines.
+ * Sectors about to be erased are forgotten before touching the flash, so an
+ * interrupted session never leaves a digest of contents that aren't there.
+ *
+ * @author ideras
+ */
+public class FlashStateCache {
+
+    public FlashStateCache(File directory) {
+        this.directory = directory;
+    }
+
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("user.home"), ".mimasv2" + File.separator + "flash-state");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /*
+     * Returns the sector digests stored for a board, all null if unknown
+     */
+    public String[] load(String board) {
+        String[] digests = new String[MimasV2ConfigDownloader.M25P16_SECTOR_COUNT];
+        File file = getFile(board);
+
+        if (!file.isFile()) {
+            return digests;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return digests;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3 || !fields[0].equals("S")) {
+                    continue;
+                }
+                int sector = Integer.parseInt(fields[1], 16);
+                if (sector >= 0 && sector < digests.length) {
+                    digests[sector] = fields[2];
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // A damaged state is as good as none
+            return new String[MimasV2ConfigDownloader.M25P16_SECTOR_COUNT];
+        }
+        return digests;
+    }
+
+    /*
+     * Replaces the stored digests of a board.  The file is written aside and
+     * moved into place.
+     */
+    public void store(String board, String[] digests) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File file = getFile(board);
+        File temporary = new File(directory, file.getName() + ".tmp");
+
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.US_ASCII)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (int sector = 0; sector < digests.length; sector++) {
+                if (digests[sector] != null) {
+                    writer.write(String.format("S %02x %s\n", sector, digests[sector]));
+                }
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void remove(String board) throws IOException {
+        Files.deleteIfExists(getFile(board).toPath());
+    }
+
+    private File getFile(String board) {
+        return new File(directory, board.replaceAll("[^A-Za-z0-9_.-]", "_") + ".state");
+    }
+
+    private final File directory;
+
+    private static final String HEADER = "MIMASV2-FLASH-1";
+}
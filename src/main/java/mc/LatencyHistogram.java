@@ -0,0 +1,112 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in power of two microsecond buckets: bucket n
+ * counts the values below 2^n us.  Percentiles are reported as the upper
+ * bound of their bucket.
+ *
+ * @author ideras
+ */
+public class LatencyHistogram {
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+        minNanos = (count == 1)? nanos : Math.min(minNanos, nanos);
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        totalNanos = 0;
+        minNanos = 0;
+        maxNanos = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanNanos() {
+        return (count > 0)? totalNanos / count : 0;
+    }
+
+    public synchronized long getMinNanos() {
+        return minNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /*
+     * Returns the upper bound in microseconds of the bucket that holds the
+     * given fraction (0 to 1) of the values
+     */
+    public synchronized long getPercentileMicros(double fraction) {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= target && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Counts per bucket, up to the last one used
+     */
+    public synchronized long[] getBuckets() {
+        int last = BUCKET_COUNT - 1;
+        while (last > 0 && buckets[last] == 0) {
+            last--;
+        }
+        return Arrays.copyOf(buckets, last + 1);
+    }
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long totalNanos;
+    private long minNanos;
+    private long maxNanos;
+
+    // The last bucket holds everything from 2^31 us (about 36 minutes)
+    private static final int BUCKET_COUNT = 32;
+}
@@ -0,0 +1,198 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures the link to a board: the round trip of a flash status read and
+ * the command frame throughput for a few batch sizes.  The FPGA is held in
+ * reset while measuring, only the status register of the flash is read and
+ * only CS is driven (kept high), so the flash contents are never touched.
+ *
+ * @author ideras
+ */
+public class LinkCalibrator {
+
+    public LinkCalibrator(MimasV2ConfigDownloader downloader) {
+        this.downloader = downloader;
+    }
+
+    /*
+     * Returns the stored profile of the port, or calibrates the link and
+     * stores the new profile if there is none, it's too old or recalibrate
+     * is set
+     */
+    public static LinkProfile getProfile(MimasV2ConfigDownloader downloader, String portName, int baudRate, boolean recalibrate) throws ConfiguratorException, IOException {
+        LinkProfile profile = recalibrate? null : LinkProfile.load(portName, baudRate);
+
+        if (profile == null || profile.isExpired()) {
+            profile = new LinkCalibrator(downloader).calibrate(baudRate);
+            profile.store(portName);
+        }
+        return profile;
+    }
+
+    public LinkProfile calibrate(int baudRate) throws ConfiguratorException, IOException {
+        int savedBatchFrames = downloader.getBatchFrames();
+        boolean calibrated = false;
+
+        try {
+            // Set PROGB to output
+            downloader.spiSetIoDirection(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, MimasV2ConfigDownloader.IO_DIRECTION_OUT);
+
+            // Pull PROGB Low, the FPGA must not drive the SPI bus
+            downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, 0);
+
+            // Open SPI port
+            downloader.spiOpen();
+
+            long[] roundTrips = measureRoundTrips();
+            long roundTrip = roundTrips[roundTrips.length / 2];
+            long maxRoundTrip = roundTrips[roundTrips.length - 1];
+
+            // The sizes are measured in turns and the best of each is kept, a busy host only slows down some rounds
+            int[] framesPerSecond = new int[BATCH_SIZES.length];
+            for (int round = 0; round < THROUGHPUT_ROUNDS; round++) {
+                for (int i = 0; i < BATCH_SIZES.length; i++) {
+                    framesPerSecond[i] = Math.max(framesPerSecond[i], measureThroughput(BATCH_SIZES[i], roundTrip));
+                }
+            }
+            int batch = chooseBatch(framesPerSecond);
+            calibrated = true;
+
+            return new LinkProfile(baudRate, roundTrip, maxRoundTrip, framesPerSecond[batch], BATCH_SIZES[batch]);
+        } finally {
+            release(savedBatchFrames, calibrated);
+        }
+    }
+
+    /*
+     * Releases the FPGA and sends the queued frames, also when the
+     * calibration failed.  The error of a failed calibration is the one
+     * reported.
+     */
+    private void release(int batchFrames, boolean calibrated) throws ConfiguratorException, IOException {
+        try {
+            try {
+                // De-assert PROGB
+                downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_PROGB, 1);
+            } finally {
+                downloader.setBatchFrames(batchFrames);
+            }
+        } catch (ConfiguratorException | IOException ex) {
+            if (calibrated) {
+                throw ex;
+            }
+        }
+    }
+
+    /*
+     * The board, not the host, usually limits the throughput, so all the batch
+     * sizes measure about the same.  The largest batch also saves host writes
+     * and system calls, keep it unless a smaller one is clearly faster.
+     */
+    private int chooseBatch(int[] framesPerSecond) {
+        int largest = BATCH_SIZES.length - 1;
+        int batch = largest;
+
+        for (int i = 0; i < largest; i++) {
+            if (framesPerSecond[i] * 100L > framesPerSecond[largest] * (100L + FASTER_PERCENT)
+                && framesPerSecond[i] > framesPerSecond[batch]) {
+                batch = i;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("Batch throughput:");
+        for (int i = 0; i < BATCH_SIZES.length; i++) {
+            sb.append(String.format(" %d frames %d/s%s", BATCH_SIZES[i], framesPerSecond[i], (i < largest)? "," : ";"));
+        }
+        if (batch == largest) {
+            sb.append(" using batches of ").append(BATCH_SIZES[batch])
+              .append(", no smaller batch is ").append(FASTER_PERCENT).append("% faster");
+        } else {
+            sb.append(" using batches of ").append(BATCH_SIZES[batch]).append(", ")
+              .append(framesPerSecond[batch] * 100L / Math.max(1, framesPerSecond[largest]) - 100)
+              .append("% faster than batches of ").append(BATCH_SIZES[largest]);
+        }
+        if (downloader.getListener() != null) {
+            downloader.getListener().logMessage(sb.toString());
+        }
+        return batch;
+    }
+
+    /*
+     * Returns the sorted round trip times of ROUND_TRIPS status reads
+     */
+    private long[] measureRoundTrips() throws ConfiguratorException, IOException {
+        long[] times = new long[ROUND_TRIPS];
+
+        // The first read pays for setting up the receiver
+        downloader.flashM25P16ReadStatus();
+
+        for (int i = 0; i < times.length; i++) {
+            long startTime = System.nanoTime();
+            downloader.flashM25P16ReadStatus();
+            times[i] = System.nanoTime() - startTime;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /*
+     * Sends THROUGHPUT_FRAMES frames in batches of the given size and waits
+     * for the board to process them with a status read, which answers after
+     * all the frames before it
+     */
+    private int measureThroughput(int batchFrames, long roundTrip) throws ConfiguratorException, IOException {
+        downloader.setBatchFrames(batchFrames);
+
+        // Set CS to output, de-asserted
+        downloader.spiSetIoDirection(MimasV2ConfigDownloader.CONFIG_IO_PIN_CS, MimasV2ConfigDownloader.IO_DIRECTION_OUT);
+        downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_CS, 1);
+        downloader.flashM25P16ReadStatus();
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+            downloader.spiSetIoValue(MimasV2ConfigDownloader.CONFIG_IO_PIN_CS, 1);
+        }
+        downloader.flashM25P16ReadStatus();
+        long elapsed = System.nanoTime() - startTime - roundTrip;
+
+        return (int) Math.min(Integer.MAX_VALUE, THROUGHPUT_FRAMES * 1000000000L / Math.max(1, elapsed));
+    }
+
+    private final MimasV2ConfigDownloader downloader;
+
+    private static final int ROUND_TRIPS = 16;
+    private static final int THROUGHPUT_FRAMES = 128;
+    private static final int THROUGHPUT_ROUNDS = 3;
+    private static final int[] BATCH_SIZES = {1, 8, 64};
+    private static final int FASTER_PERCENT = 20;
+}
@@ -0,0 +1,210 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Link parameters of a board, derived from the round trip latency and frame
+ * throughput measured by LinkCalibrator.  Profiles are stored in the user
+ * preferences, one per port and baud rate.
+ *
+ * @author ideras
+ */
+public class LinkProfile {
+
+    public LinkProfile(int baudRate, long roundTripNanos, long maxRoundTripNanos, int framesPerSecond, int batchFrames) {
+        this(baudRate, roundTripNanos, maxRoundTripNanos, framesPerSecond, batchFrames, System.currentTimeMillis());
+    }
+
+    private LinkProfile(int baudRate, long roundTripNanos, long maxRoundTripNanos, int framesPerSecond, int batchFrames, long measuredAt) {
+        this.baudRate = baudRate;
+        this.roundTripNanos = roundTripNanos;
+        this.maxRoundTripNanos = maxRoundTripNanos;
+        this.framesPerSecond = framesPerSecond;
+        this.batchFrames = batchFrames;
+        this.measuredAt = measuredAt;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /*
+     * Median time of a status read, from the request to the response
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    public long getMaxRoundTripNanos() {
+        return maxRoundTripNanos;
+    }
+
+    /*
+     * Command frames per second the board takes when sent in batches of
+     * getBatchFrames() frames
+     */
+    public int getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /*
+     * Batch size chosen by the calibration, the largest unless a smaller one
+     * was clearly faster
+     */
+    public int getBatchFrames() {
+        return batchFrames;
+    }
+
+    /*
+     * Time the profile was measured, in milliseconds since the epoch
+     */
+    public long getMeasuredAt() {
+        return measuredAt;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() - measuredAt > MAX_AGE;
+    }
+
+    /*
+     * Waiting for a response longer than a few worst round trips only delays
+     * detecting a board that stopped answering
+     */
+    public int getResponseTimeout() {
+        long timeoutMs = maxRoundTripNanos * TIMEOUT_FACTOR / 1000000;
+        return (int) Math.max(MIN_RESPONSE_TIMEOUT, Math.min(MimasV2ConfigDownloader.RESPONSE_TIMEOUT, timeoutMs));
+    }
+
+    /*
+     * Late responses arrive within a worst round trip
+     */
+    public int getFlushDelay() {
+        long delayMs = (maxRoundTripNanos + 999999) / 1000000;
+        return (int) Math.max(1, Math.min(MimasV2ConfigDownloader.IN_BUFFER_FLUSH_DELAY, delayMs));
+    }
+
+    /*
+     * A status poll takes a round trip, polling faster only queues requests
+     */
+    public long getPollIntervalNanos() {
+        return Math.max(BusyPoller.MIN_INTERVAL_NANOS, roundTripNanos);
+    }
+
+    /*
+     * Enough read requests in flight to keep the link busy for a round trip,
+     * with the same again as margin
+     */
+    public int getReadWindow() {
+        long frameNanos = 1000000000L / Math.max(1, framesPerSecond);
+        long window = 2 * ((roundTripNanos + frameNanos - 1) / frameNanos);
+        return (int) Math.max(MIN_READ_WINDOW, Math.min(MAX_READ_WINDOW, window));
+    }
+
+    /*
+     * Applies the derived link parameters to a downloader
+     */
+    public void applyTo(MimasV2ConfigDownloader downloader) throws IOException {
+        downloader.setResponseTimeout(getResponseTimeout());
+        downloader.setFlushDelay(getFlushDelay());
+        downloader.setReadWindow(getReadWindow());
+        downloader.setBatchFrames(batchFrames);
+        downloader.getBusyPoller().setMinIntervalNanos(getPollIntervalNanos());
+    }
+
+    /*
+     * Loads the profile stored for a port, null if there is none
+     */
+    public static LinkProfile load(String portName, int baudRate) {
+        Preferences node = getNode(portName, baudRate);
+        long measuredAt = node.getLong("measuredAt", 0);
+
+        // Profiles of an older calibration are measured again
+        if (measuredAt == 0 || node.getInt("version", 0) != VERSION) {
+            return null;
+        }
+        return new LinkProfile(baudRate,
+                               node.getLong("roundTripNanos", 0),
+                               node.getLong("maxRoundTripNanos", 0),
+                               node.getInt("framesPerSecond", 0),
+                               node.getInt("batchFrames", MimasV2ConfigDownloader.BATCH_FRAMES),
+                               measuredAt);
+    }
+
+    public void store(String portName) {
+        Preferences node = getNode(portName, baudRate);
+
+        node.putLong("roundTripNanos", roundTripNanos);
+        node.putLong("maxRoundTripNanos", maxRoundTripNanos);
+        node.putInt("framesPerSecond", framesPerSecond);
+        node.putInt("batchFrames", batchFrames);
+        node.putLong("measuredAt", measuredAt);
+        node.putInt("version", VERSION);
+    }
+
+    public static void remove(String portName, int baudRate) {
+        Preferences node = getNode(portName, baudRate);
+        try {
+            node.removeNode();
+        } catch (BackingStoreException ex) {
+        }
+    }
+
+    private static Preferences getNode(String portName, int baudRate) {
+        // Preference node names can't contain '/'
+        String key = portName.replace('/', '_') + "@" + baudRate;
+        return Preferences.userNodeForPackage(LinkProfile.class).node("links").node(key);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("round trip %.2f ms (max %.2f ms), %d frames/s, batch %d, read window %d, timeout %d ms",
+                             roundTripNanos / 1e6, maxRoundTripNanos / 1e6, framesPerSecond, batchFrames,
+                             getReadWindow(), getResponseTimeout());
+    }
+
+    private final int baudRate;
+    private final long roundTripNanos;
+    private final long maxRoundTripNanos;
+    private final int framesPerSecond;
+    private final int batchFrames;
+    private final long measuredAt;
+
+    /* Boards and USB hubs don't change often, a week old profile is still good */
+    public static final long MAX_AGE = 7L * 24 * 3600 * 1000;
+
+    /* Version 2 keeps the largest batch unless a smaller one is clearly faster */
+    private static final int VERSION = 2;
+    private static final long TIMEOUT_FACTOR = 20;
+    private static final int MIN_RESPONSE_TIMEOUT = 200;
+    private static final int MIN_READ_WINDOW = 2;
+    private static final int MAX_READ_WINDOW = 64;
+}
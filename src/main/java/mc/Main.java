@@ -27,6 +27,7 @@
 */
 package mc;
 
+import mc.cli.CommandLineProgrammer;
 import mc.gui.ConfiguratorWindow;
 
 /**
@@ -39,6 +40,11 @@ public class Main {
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        /* Any argument selects the headless command line mode */
+        if (args.length > 0) {
+            System.exit(new CommandLineProgrammer(System.out).execute(args));
+        }
+
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -0,0 +1,284 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the data sent by the board as soon as it arrives and reassembles it
+ * in 38 byte packets (CDC_DATA_IN_EP_SIZE).  Callers wait for a packet of the
+ * type they expect instead of sleeping and skipping the input buffer; packets
+ * of any other type are responses to earlier commands and are dropped.
+ *
+ * The board answers the buffer requests in order, so buffer packets are
+ * numbered as they arrive and matched to the request they answer.  The answer
+ * of a request that timed out is recognized as such when it arrives late,
+ * until clear() gives up on all the requests sent so far.
+ *
+ * @author ideras
+ */
+public class PacketReceiver {
+
+    public PacketReceiver(int capacityInPackets) {
+        ring = new byte[capacityInPackets * PACKET_SIZE];
+    }
+
+    /*
+     * Creates a receiver and registers it as the data listener of the transport
+     */
+    public static PacketReceiver attach(Transport transport) throws IOException {
+        PacketReceiver receiver = new PacketReceiver(DEFAULT_CAPACITY);
+
+        try {
+            receiver.in = transport.getInputStream();
+            transport.setDataListener(receiver::dataAvailable);
+        } catch (IOException ex) {
+            throw new IOException("Cannot listen for data on port " + transport.getName() + ": " + ex.getMessage(), ex);
+        }
+        receiver.transport = transport;
+        return receiver;
+    }
+
+    /*
+     * Stops receiving the data of the transport, which stays open for another
+     * receiver
+     */
+    public void detach() {
+        Transport attached = transport;
+        if (attached != null) {
+            transport = null;
+            attached.removeDataListener();
+        }
+    }
+
+    /*
+     * Reads everything available from the input stream
+     */
+    public void dataAvailable() {
+        try {
+            int available;
+            while ((available = in.available()) > 0) {
+                int count = in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+                if (count <= 0) {
+                    break;
+                }
+                feed(readBuffer, 0, count);
+            }
+        } catch (IOException ex) {
+            // The port was closed, the waiting callers will time out
+        }
+    }
+
+    /*
+     * Adds received bytes to the buffer.  If the buffer is full the oldest
+     * packets are dropped.
+     */
+    public synchronized void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (count == ring.length) {
+                dropPacket();
+                overflowCount++;
+            }
+            int tail = (head + count) % ring.length;
+            int chunk = Math.min(length, Math.min(ring.length - count, ring.length - tail));
+
+            System.arraycopy(data, offset, ring, tail, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+        notifyAll();
+    }
+
+    /*
+     * Records that a buffer request (CONFIG_OUT_PACKET_SPI_GETSTRING) was
+     * sent.  Its answer is taken by the next receive of a buffer packet that
+     * isn't waiting for an earlier request.
+     */
+    public synchronized void bufferRequested() {
+        bufferRequests++;
+    }
+
+    /*
+     * Waits for a packet of the given type (CONFIG_IN_PACKET_*) and copies it
+     * to packet.  Packets of other types received in the meantime are dropped,
+     * and so are the buffer packets answering requests that timed out.
+     * @return false if no packet of that type arrived before the timeout
+     */
+    public synchronized boolean receive(int packetType, byte[] packet, long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        boolean buffer = packetType == MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER;
+        long request = buffer? ++bufferReceives : 0;
+
+        while (true) {
+            if (!waitForPacket(deadline)) {
+                return false;
+            }
+
+            int type = ring[(head + 1) % ring.length];
+            if (type != packetType) {
+                dropPacket();
+                droppedCount++;
+            } else if (buffer && !takeBufferResponse(request)) {
+                discard(PACKET_SIZE);
+                droppedCount++;
+            } else {
+                copyOut(packet, 0, PACKET_SIZE);
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Numbers the buffer packet at the head of the buffer
+     * @return true if it answers the given request
+     */
+    private boolean takeBufferResponse(long request) {
+        if (bufferResponses == bufferRequests) {
+            // Nothing was requested, it isn't the answer of anything
+            return false;
+        }
+        bufferResponses++;
+        return bufferResponses == request;
+    }
+
+    /*
+     * Reads raw bytes, waiting at most timeoutMs for the first one
+     * @return The number of bytes read
+     */
+    public synchronized int read(byte[] buffer, int offset, int length, long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+
+        while (count == 0) {
+            if (!waitUntil(deadline)) {
+                return 0;
+            }
+        }
+        int n = Math.min(length, count);
+        copyOut(buffer, offset, n);
+        return n;
+    }
+
+    /*
+     * Drops all the data received so far and gives up on the answers of the
+     * requests sent so far, the next buffer packet answers the next request
+     */
+    public synchronized void clear() {
+        droppedCount += count / PACKET_SIZE;
+        head = 0;
+        count = 0;
+        bufferResponses = bufferRequests;
+        bufferReceives = bufferRequests;
+    }
+
+    /*
+     * Number of packets dropped because they weren't the expected response
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /*
+     * Number of packets lost because the buffer was full
+     */
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /*
+     * Drops the packet at the head of the buffer, counting the buffer packets
+     * as answered
+     */
+    private void dropPacket() {
+        if (ring[(head + 1) % ring.length] == MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER
+            && bufferResponses < bufferRequests) {
+            bufferResponses++;
+        }
+        discard(PACKET_SIZE);
+    }
+
+    private boolean waitForPacket(long deadline) {
+        while (true) {
+            // Skip garbage until the sync byte of the next packet
+            while (count > 0 && ring[head] != SYNC_BYTE) {
+                discard(1);
+            }
+            if (count >= PACKET_SIZE) {
+                return true;
+            }
+            if (!waitUntil(deadline)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            wait(remaining / 1000000, (int) (remaining % 1000000));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void copyOut(byte[] buffer, int offset, int length) {
+        int first = Math.min(length, ring.length - head);
+
+        System.arraycopy(ring, head, buffer, offset, first);
+        System.arraycopy(ring, 0, buffer, offset + first, length - first);
+        discard(length);
+    }
+
+    private void discard(int length) {
+        head = (head + length) % ring.length;
+        count -= length;
+    }
+
+    private final byte[] ring;
+    private final byte[] readBuffer = new byte[1024];
+    private InputStream in;
+    private volatile Transport transport;
+    private int head;
+    private int count;
+    private long bufferRequests;
+    private long bufferResponses;
+    private long bufferReceives;
+    private long droppedCount;
+    private long overflowCount;
+
+    public static final int PACKET_SIZE = MimasV2ConfigDownloader.CDC_DATA_IN_EP_SIZE;
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final byte SYNC_BYTE = 0x7e;
+}
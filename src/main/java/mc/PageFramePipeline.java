@@ -0,0 +1,195 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Prepares the page program frames ahead of the thread that writes them to
+ * the board.  A producer thread reads the image and encodes each page into a
+ * buffer taken from a fixed pool; the pages are handed over through a bounded
+ * queue, so memory use doesn't depend on the image size.
+ *
+ * Blank pages (all 0xFF) are skipped, they are left as they are after an erase.
+ *
+ * @author ideras
+ */
+public class PageFramePipeline implements Closeable {
+
+    /**
+     * The frames of one page program sequence.
+     */
+    public static class PreparedPage {
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /*
+         * The page contents, getLength() bytes
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public byte[] getFrames() {
+            return frames;
+        }
+
+        public int getFrameBytes() {
+            return frameBytes;
+        }
+
+        private int address;
+        private int length;
+        private int frameBytes;
+        private final byte[] data = new byte[MimasV2ConfigDownloader.M25P16_PAGE_SIZE];
+        private final byte[] frames = new byte[CommandFrames.PAGE_PROGRAM_SIZE];
+    }
+
+    /*
+     * Selects the pages to program
+     */
+    public interface PageFilter {
+        boolean accept(int address);
+    }
+
+    public PageFramePipeline(FlashImage image, PageFilter filter, int depth) {
+        this.image = image;
+        this.filter = filter;
+        this.ready = new ArrayBlockingQueue<>(depth + 1);
+        this.free = new ArrayBlockingQueue<>(depth);
+
+        for (int i = 0; i < depth; i++) {
+            free.add(new PreparedPage());
+        }
+        producer = new Thread(this::produce, "PageFramePipeline");
+        producer.setDaemon(true);
+    }
+
+    public void start() {
+        producer.start();
+    }
+
+    /*
+     * Returns the next page to program or null when there are no more pages
+     */
+    public PreparedPage take() throws IOException {
+        PreparedPage page;
+        try {
+            page = ready.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for page data");
+        }
+
+        if (page == END) {
+            // Let the next call see the end as well
+            ready.offer(END);
+            Throwable failure = error;
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IOException("Cannot prepare the page data: " + failure, failure);
+            }
+            return null;
+        }
+        return page;
+    }
+
+    /*
+     * Returns a page to the pool once its frames were sent
+     */
+    public void release(PreparedPage page) {
+        free.offer(page);
+    }
+
+    /*
+     * Number of blank pages skipped so far
+     */
+    public int getBlankPages() {
+        return blankPages;
+    }
+
+    @Override
+    public void close() {
+        producer.interrupt();
+    }
+
+    private void produce() {
+        byte[] data = new byte[MimasV2ConfigDownloader.M25P16_PAGE_SIZE];
+        int size = image.size();
+
+        try {
+            for (int address = 0; address < size; address += MimasV2ConfigDownloader.M25P16_PAGE_SIZE) {
+                if (!filter.accept(address)) {
+                    continue;
+                }
+                int count = Math.min(MimasV2ConfigDownloader.M25P16_PAGE_SIZE, size - address);
+
+                image.read(address, data, 0, count);
+                if (MimasV2ConfigDownloader.isBlank(data, 0, count)) {
+                    blankPages++;
+                    continue;
+                }
+
+                PreparedPage page = free.take();
+                page.address = address;
+                page.length = count;
+                System.arraycopy(data, 0, page.data, 0, count);
+                page.frameBytes = CommandFrames.flashPageProgram(page.frames, 0, data, 0, count, address);
+                ready.put(page);
+            }
+        } catch (InterruptedException ex) {
+            // The consumer is gone
+        } catch (Throwable ex) {
+            error = ex;
+        } finally {
+            // Whatever happened, the consumer must not wait forever
+            ready.offer(END);
+        }
+    }
+
+    private final FlashImage image;
+    private final PageFilter filter;
+    private final BlockingQueue<PreparedPage> ready;
+    private final BlockingQueue<PreparedPage> free;
+    private final Thread producer;
+    private volatile int blankPages;
+    private volatile Throwable error;
+
+    private static final PreparedPage END = new PreparedPage();
+}
@@ -0,0 +1,105 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An image file that was already parsed and validated: where the flash data
+ * starts in the file, how long it is and what it contains.  Instances are kept
+ * in the PreparedImageCache, keyed by the hash of the file contents.
+ *
+ * @author ideras
+ */
+public class PreparedImage {
+
+    PreparedImage(String contentHash, BitstreamParser.BitstreamInfo bitstream, long dataOffset, int dataLength) {
+        this.contentHash = contentHash;
+        this.bitstream = bitstream;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /*
+     * Opens the flash data of a file with the contents this image was prepared
+     * from.  The contents are hashed again, a file changed since it was
+     * prepared is an error.
+     */
+    public FlashImage open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (!PreparedImageCache.hash(channel).equals(contentHash)) {
+                throw new IOException("The file " + file.getName() + " changed after it was loaded");
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new FileFlashImage(channel, dataOffset, dataLength);
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public boolean isBitstream() {
+        return bitstream != null;
+    }
+
+    /*
+     * Returns the .bit header fields, or null for raw binary images
+     */
+    public BitstreamParser.BitstreamInfo getBitstream() {
+        return bitstream;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    @Override
+    public String toString() {
+        if (bitstream == null) {
+            return "Binary image, " + dataLength + " bytes";
+        }
+        return "Bitstream '" + bitstream.getDesignName() + "' for " + bitstream.getPartName() + " ("
+               + bitstream.getDate() + " " + bitstream.getTime() + "), " + dataLength + " bytes";
+    }
+
+    private final String contentHash;
+    private final BitstreamParser.BitstreamInfo bitstream;
+    private final long dataOffset;
+    private final int dataLength;
+}
@@ -0,0 +1,151 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used prepared images, keyed by the SHA-256 of the
+ * file contents.  Flashing the same file again, from any path, skips parsing
+ * and validation.
+ *
+ * @author ideras
+ */
+public class PreparedImageCache {
+
+    public PreparedImageCache(int capacity) {
+        this.entries = new LinkedHashMap<String, PreparedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedImage> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /*
+     * The cache shared by all the sessions of the process
+     */
+    public static PreparedImageCache getDefault() {
+        return DEFAULT;
+    }
+
+    /*
+     * Returns the prepared image for the file, parsing and validating it
+     * only if its contents are not in the cache
+     */
+    public PreparedImage prepare(File file) throws IOException, ConfiguratorException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            String hash = hash(channel);
+
+            synchronized (this) {
+                PreparedImage image = entries.get(hash);
+                if (image != null) {
+                    hits++;
+                    return image;
+                }
+                misses++;
+            }
+
+            PreparedImage image;
+            if (BitstreamParser.isBitstream(channel)) {
+                BitstreamParser.BitstreamInfo info = BitstreamParser.parse(channel);
+                image = new PreparedImage(hash, info, info.getDataOffset(), info.getDataLength());
+            } else {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new ConfiguratorException("File too large: " + file.getName());
+                }
+                image = new PreparedImage(hash, null, 0, (int) channel.size());
+            }
+
+            synchronized (this) {
+                entries.put(hash, image);
+            }
+            return image;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /*
+     * Returns the SHA-256 of the file contents as an hex string
+     */
+    static String hash(FileChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        long position = 0;
+        int count;
+        while ((count = channel.read(buffer, position)) > 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            position += count;
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private final LinkedHashMap<String, PreparedImage> entries;
+    private long hits;
+    private long misses;
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final PreparedImageCache DEFAULT = new PreparedImageCache(DEFAULT_CAPACITY);
+}
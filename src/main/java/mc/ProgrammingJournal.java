@@ -0,0 +1,253 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Records the progress of a programming session on disk: the sectors erased
+ * and the pages programmed and verified.  When a session for the same image
+ * and board is interrupted, the next one resumes from the last good point
+ * instead of erasing and programming everything again.
+ *
+ * The journal is a text file with one record per line, appended as the
+ * session goes.  It is deleted when the session completes.
+ *
+ * @author ideras
+ */
+public class ProgrammingJournal implements Closeable {
+
+    private ProgrammingJournal(File file, String imageHash, int imageSize) {
+        this.file = file;
+        this.imageHash = imageHash;
+        this.imageSize = imageSize;
+    }
+
+    /*
+     * Opens the journal of an image and board, loading the progress of the
+     * previous session if there is one
+     */
+    public static ProgrammingJournal open(File directory, String imageHash, String boardId, int imageSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the journal directory " + directory);
+        }
+
+        String name = boardId.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + imageHash.substring(0, 16) + ".journal";
+        ProgrammingJournal journal = new ProgrammingJournal(new File(directory, name), imageHash, imageSize);
+
+        if (journal.file.isFile()) {
+            if (System.currentTimeMillis() - journal.file.lastModified() < MAX_AGE_MS) {
+                journal.load();
+            }
+            if (!journal.resumed) {
+                Files.delete(journal.file.toPath());
+            }
+        }
+
+        journal.writer = Files.newBufferedWriter(journal.file.toPath(), StandardCharsets.US_ASCII,
+                                                 StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (!journal.resumed) {
+            journal.write(HEADER + " " + imageHash + " " + imageSize);
+        }
+        return journal;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER + " " + imageHash + " " + imageSize)) {
+                return;
+            }
+
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 2) {
+                    // A partially written record at the end of the file
+                    break;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(fields[1], 16);
+                } catch (NumberFormatException ex) {
+                    break;
+                }
+                apply(fields[0], value);
+            }
+            resumed = !erasedSectors.isEmpty();
+        }
+    }
+
+    private void apply(String record, int value) {
+        switch (record) {
+            case SECTOR_ERASED:
+                erasedSectors.set(value);
+                // The pages of the sector are blank again
+                int firstPage = value * PAGES_PER_SECTOR;
+                programmedPages.clear(firstPage, firstPage + PAGES_PER_SECTOR);
+                verifiedPages.clear(firstPage, firstPage + PAGES_PER_SECTOR);
+                break;
+            case PAGE_PROGRAMMED:
+                programmedPages.set(value / MimasV2ConfigDownloader.M25P16_PAGE_SIZE);
+                break;
+            case PAGE_VERIFIED:
+                verifiedPages.set(value / MimasV2ConfigDownloader.M25P16_PAGE_SIZE);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+     * Returns true if the progress of a previous session was loaded
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public boolean isSectorErased(int sector) {
+        return erasedSectors.get(sector);
+    }
+
+    public boolean isPageProgrammed(int address) {
+        return programmedPages.get(address / MimasV2ConfigDownloader.M25P16_PAGE_SIZE);
+    }
+
+    public boolean isPageVerified(int address) {
+        return verifiedPages.get(address / MimasV2ConfigDownloader.M25P16_PAGE_SIZE);
+    }
+
+    /*
+     * Returns a copy of the pages programmed, or verified, indexed by page number
+     */
+    public BitSet getCompletedPages(boolean verified) {
+        return (BitSet) (verified? verifiedPages : programmedPages).clone();
+    }
+
+    public int getErasedSectorCount() {
+        return erasedSectors.cardinality();
+    }
+
+    public int getProgrammedPageCount() {
+        return programmedPages.cardinality();
+    }
+
+    public void sectorErased(int sector) throws IOException {
+        record(SECTOR_ERASED, sector);
+    }
+
+    public void bulkErased() throws IOException {
+        for (int sector = 0; sector < MimasV2ConfigDownloader.M25P16_SECTOR_COUNT; sector++) {
+            record(SECTOR_ERASED, sector);
+        }
+    }
+
+    public void pageProgrammed(int address) throws IOException {
+        record(PAGE_PROGRAMMED, address);
+    }
+
+    public void pageVerified(int address) throws IOException {
+        record(PAGE_VERIFIED, address);
+    }
+
+    /*
+     * Forgets the progress of the previous session, the flash no longer holds
+     * what it recorded.  The session starts over in the same journal.
+     */
+    public void discard() throws IOException {
+        close();
+        erasedSectors.clear();
+        programmedPages.clear();
+        verifiedPages.clear();
+        resumed = false;
+
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII, StandardOpenOption.CREATE,
+                                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        write(HEADER + " " + imageHash + " " + imageSize);
+    }
+
+    /*
+     * The session completed, there is nothing left to resume
+     */
+    public void complete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void record(String record, int value) throws IOException {
+        apply(record, value);
+        write(record + " " + Integer.toHexString(value));
+    }
+
+    private void write(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        // Every record must survive the process dying right after it
+        writer.flush();
+    }
+
+    /*
+     * Default location of the journals
+     */
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("user.home"), ".mimasv2" + File.separator + "journal");
+    }
+
+    private final File file;
+    private final String imageHash;
+    private final int imageSize;
+    private final BitSet erasedSectors = new BitSet();
+    private final BitSet programmedPages = new BitSet();
+    private final BitSet verifiedPages = new BitSet();
+    private BufferedWriter writer;
+    private boolean resumed;
+
+    private static final String HEADER = "MIMASV2-JOURNAL-1";
+    private static final String SECTOR_ERASED = "E";
+    private static final String PAGE_PROGRAMMED = "P";
+    private static final String PAGE_VERIFIED = "V";
+    private static final int PAGES_PER_SECTOR = MimasV2ConfigDownloader.M25P16_SECTOR_SIZE / MimasV2ConfigDownloader.M25P16_PAGE_SIZE;
+
+    // Older journals are ignored, the flash may have been changed since
+    private static final long MAX_AGE_MS = 24L * 60 * 60 * 1000;
+}
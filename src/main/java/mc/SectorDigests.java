@@ -0,0 +1,124 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 of every sector of an image as it ends up in the flash: the image
+ * data followed by erased (0xFF) bytes up to the end of the sector.  The
+ * sectors are hashed in parallel on a fork-join pool, each task reading its
+ * own sectors from the image.
+ *
+ * @author ideras
+ */
+public class SectorDigests {
+
+    private SectorDigests() {
+    }
+
+    /*
+     * Returns the digest of each sector of the image as a hex string, null
+     * for the sectors the image doesn't define
+     */
+    public static String[] compute(FlashImage image) throws IOException {
+        return compute(image, ForkJoinPool.commonPool());
+    }
+
+    public static String[] compute(FlashImage image, ForkJoinPool pool) throws IOException {
+        int sectorCount = (image.size() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        String[] digests = new String[sectorCount];
+
+        try {
+            pool.invoke(new DigestTask(image, digests, 0, sectorCount));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return digests;
+    }
+
+    private static class DigestTask extends RecursiveAction {
+
+        DigestTask(FlashImage image, String[] digests, int first, int end) {
+            this.image = image;
+            this.digests = digests;
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first > SECTORS_PER_TASK) {
+                int middle = (first + end) >>> 1;
+                invokeAll(new DigestTask(image, digests, first, middle), new DigestTask(image, digests, middle, end));
+                return;
+            }
+
+            MessageDigest digest = newDigest();
+            byte[] data = new byte[SECTOR_SIZE];
+            for (int sector = first; sector < end; sector++) {
+                int address = sector * SECTOR_SIZE;
+                int length = Math.min(SECTOR_SIZE, image.size() - address);
+
+                if (!image.isDefined(address, length)) {
+                    continue;
+                }
+                try {
+                    image.read(address, data, 0, length);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                Arrays.fill(data, length, SECTOR_SIZE, (byte) 0xFF);
+
+                digests[sector] = PreparedImageCache.toHex(digest.digest(data));
+            }
+        }
+
+        private final FlashImage image;
+        private final String[] digests;
+        private final int first;
+        private final int end;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final int SECTOR_SIZE = MimasV2ConfigDownloader.M25P16_SECTOR_SIZE;
+    private static final int SECTORS_PER_TASK = 2;
+}
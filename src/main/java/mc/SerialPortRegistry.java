@@ -0,0 +1,325 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Set of the serial ports of the system, kept up to date by a background
+ * thread.  Where there is a /dev directory the thread watches it for serial
+ * devices being added or removed, elsewhere it enumerates the ports through
+ * PureJavaComm every few seconds.  Reading the set never enumerates ports.
+ *
+ * @author ideras
+ */
+public class SerialPortRegistry {
+
+    /**
+     * Notified, on the registry thread, when a port is added or removed
+     */
+    public interface PortListener {
+        void portAdded(String portName);
+        void portRemoved(String portName);
+    }
+
+    public SerialPortRegistry() {
+        this(Paths.get(DEV_DIRECTORY));
+    }
+
+    public SerialPortRegistry(Path deviceDirectory) {
+        this.deviceDirectory = deviceDirectory;
+    }
+
+    /*
+     * Returns the registry shared by the whole application, started on first use
+     */
+    public static synchronized SerialPortRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new SerialPortRegistry();
+            defaultRegistry.start();
+        }
+        return defaultRegistry;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "serial-port-registry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ex) {
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /*
+     * Returns the current port names, sorted.  Only waits, and at most
+     * SCAN_TIMEOUT ms, if the first scan hasn't finished yet.
+     */
+    public List<String> getPorts() {
+        try {
+            scanned.await(SCAN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(ports));
+    }
+
+    public boolean contains(String portName) {
+        return ports.contains(portName);
+    }
+
+    /*
+     * True once the first scan has finished
+     */
+    public boolean isReady() {
+        return scanned.getCount() == 0;
+    }
+
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    public void addListener(PortListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PortListener listener) {
+        listeners.remove(listener);
+    }
+
+    /*
+     * Asks the registry thread to scan all the ports again, i.e. after the
+     * user asks for it
+     */
+    public void rescan() {
+        rescanRequested = true;
+
+        // The watch loop checks the request every WATCH_INTERVAL ms, the poll loop sleeps longer
+        if (thread != null && isReady() && watchService == null) {
+            thread.interrupt();
+        }
+    }
+
+    /*
+     * Returns true if a file name in /dev is a serial device
+     */
+    public static boolean isSerialDevice(String fileName) {
+        return SERIAL_DEVICE.matcher(fileName).matches();
+    }
+
+    private void run() {
+        try {
+            watchService = deviceDirectory.getFileSystem().newWatchService();
+            deviceDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException ex) {
+            closeWatchService();
+        }
+
+        if (watchService != null) {
+            update(scanDeviceDirectory());
+            scanned.countDown();
+            watch();
+        } else {
+            poll();
+        }
+    }
+
+    /*
+     * Applies the add and remove events of the device directory
+     */
+    private void watch() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.poll(WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+
+            if (rescanRequested) {
+                rescanRequested = false;
+                update(scanDeviceDirectory());
+            }
+            if (key == null) {
+                continue;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, start from a full scan
+                    update(scanDeviceDirectory());
+                    continue;
+                }
+
+                String fileName = event.context().toString();
+                if (!isSerialDevice(fileName)) {
+                    continue;
+                }
+                String portName = deviceDirectory.resolve(fileName).toString();
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    add(portName);
+                } else {
+                    remove(portName);
+                }
+            }
+
+            if (!key.reset()) {
+                // The directory is gone
+                break;
+            }
+        }
+        closeWatchService();
+    }
+
+    /*
+     * Without a device directory to watch, enumerate the ports now and then
+     */
+    private void poll() {
+        while (!closed) {
+            rescanRequested = false;
+            update(new TreeSet<>(SerialPorts.list()));
+            scanned.countDown();
+
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException ex) {
+                if (closed) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private NavigableSet<String> scanDeviceDirectory() {
+        NavigableSet<String> found = new TreeSet<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(deviceDirectory)) {
+            for (Path path : stream) {
+                if (isSerialDevice(path.getFileName().toString())) {
+                    found.add(path.toString());
+                }
+            }
+        } catch (IOException ex) {
+            // Keep the ports known so far
+            return new TreeSet<>(ports);
+        }
+        return found;
+    }
+
+    /*
+     * Makes the port set equal to the given one, notifying the differences
+     */
+    private void update(Set<String> current) {
+        for (String portName : ports) {
+            if (!current.contains(portName)) {
+                remove(portName);
+            }
+        }
+        for (String portName : current) {
+            add(portName);
+        }
+    }
+
+    private void add(String portName) {
+        if (ports.add(portName)) {
+            for (PortListener listener : listeners) {
+                listener.portAdded(portName);
+            }
+        }
+    }
+
+    private void remove(String portName) {
+        if (ports.remove(portName)) {
+            for (PortListener listener : listeners) {
+                listener.portRemoved(portName);
+            }
+        }
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+            }
+            watchService = null;
+        }
+    }
+
+    public static final String DEV_DIRECTORY = "/dev";
+    public static final int SCAN_TIMEOUT = 2000;
+    public static final int WATCH_INTERVAL = 250;
+    public static final int POLL_INTERVAL = 3000;
+
+    /* USB CDC (the Mimas V2), USB serial adapters, on board UARTs and macOS call-out devices */
+    private static final Pattern SERIAL_DEVICE = Pattern.compile("tty(ACM|USB|AMA|S)[0-9]+|cu\\..+");
+
+    private static SerialPortRegistry defaultRegistry;
+
+    private final Path deviceDirectory;
+    private final NavigableSet<String> ports = new ConcurrentSkipListSet<>();
+    private final List<PortListener> listeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch scanned = new CountDownLatch(1);
+    private Thread thread;
+    private volatile WatchService watchService;
+    private volatile boolean rescanRequested;
+    private volatile boolean closed;
+}
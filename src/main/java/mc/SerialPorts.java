@@ -0,0 +1,186 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import mc.sim.MimasV2Simulator;
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.NoSuchPortException;
+import purejavacomm.PortInUseException;
+import purejavacomm.SerialPort;
+import purejavacomm.UnsupportedCommOperationException;
+
+/**
+ *
+ * @author ideras
+ */
+public class SerialPorts {
+
+    private SerialPorts() {
+    }
+
+    /*
+     * Enumerates the serial ports available in the system.  Slow with many
+     * ports, use SerialPortRegistry.getPorts() instead.
+     */
+    public static List<String> list() {
+        List<String> names = new ArrayList<>();
+
+        Enumeration ports = CommPortIdentifier.getPortIdentifiers();
+        while (ports.hasMoreElements()) {
+            CommPortIdentifier port = (CommPortIdentifier) ports.nextElement();
+            if (port.getPortType() == CommPortIdentifier.PORT_SERIAL) {
+                names.add(port.getName());
+            }
+        }
+        return names;
+    }
+
+    /*
+     * Expands a list of port names and glob patterns (i.e. /dev/ttyACM*) to the
+     * names of the serial ports they refer to.  Plain names are kept as they are.
+     */
+    public static List<String> expand(List<String> patterns) {
+        Set<String> result = new LinkedHashSet<>();
+        List<String> available = null;
+
+        for (String pattern : patterns) {
+            if (!isGlob(pattern)) {
+                result.add(pattern);
+                continue;
+            }
+            if (available == null) {
+                available = SerialPortRegistry.getDefault().getPorts();
+            }
+
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            for (String name : available) {
+                if (matcher.matches(Paths.get(name)) || matcher.matches(Paths.get(DEV_PREFIX + name))) {
+                    result.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static boolean isGlob(String pattern) {
+        return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0;
+    }
+
+    /*
+     * Opens a serial port with the settings used by the Mimas V2 programming interface
+     */
+    public static SerialPort open(String portName, int baudRate) throws ConfiguratorException {
+        CommPortIdentifier serialPortIdent = findPort(portName);
+        SerialPort serialPort;
+
+        try {
+            serialPort = (SerialPort) serialPortIdent.open("MimasV2ConfigDownloader", OPEN_TIMEOUT);
+        } catch (PortInUseException ex) {
+            throw new ConfiguratorException("Port " + portName + " is already in use or you don't have permission to use it.");
+        }
+
+        try {
+            serialPort.enableReceiveTimeout(RECEIVE_TIMEOUT);
+            serialPort.setSerialPortParams(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+        } catch (UnsupportedCommOperationException ex) {
+            serialPort.close();
+            throw new ConfiguratorException("Unsupported operation while opening port " + portName);
+        }
+        return serialPort;
+    }
+
+    /*
+     * Opens the transport of a board: a serial port, or an in-process
+     * simulated board if the name starts with sim:
+     */
+    public static Transport openTransport(String portName, int baudRate) throws ConfiguratorException {
+        if (MimasV2Simulator.isSimulatorName(portName)) {
+            return MimasV2Simulator.open(portName);
+        }
+        return new SerialTransport(open(portName, baudRate));
+    }
+
+    /*
+     * Returns the serial number of the USB device of a port, read from sysfs,
+     * or null if the port is not a USB device or the device has no serial
+     */
+    public static String getUsbSerial(String portName) {
+        if (MimasV2Simulator.isSimulatorName(portName)) {
+            return null;
+        }
+        Path device = Paths.get(SYS_CLASS_TTY, Paths.get(portName).getFileName().toString(), "device");
+
+        try {
+            // device is the USB interface, the serial belongs to its parent
+            Path dir = device.toRealPath();
+            for (int level = 0; level < 2 && dir != null; level++, dir = dir.getParent()) {
+                Path serial = dir.resolve("serial");
+                if (Files.isRegularFile(serial)) {
+                    String value = new String(Files.readAllBytes(serial), StandardCharsets.US_ASCII).trim();
+                    return value.isEmpty()? null : value;
+                }
+            }
+        } catch (IOException ex) {
+        }
+        return null;
+    }
+
+    private static CommPortIdentifier findPort(String portName) throws ConfiguratorException {
+        try {
+            return CommPortIdentifier.getPortIdentifier(portName);
+        } catch (NoSuchPortException ex) {
+            // Port identifiers don't include the /dev/ prefix on every platform
+            if (portName.startsWith(DEV_PREFIX)) {
+                try {
+                    return CommPortIdentifier.getPortIdentifier(portName.substring(DEV_PREFIX.length()));
+                } catch (NoSuchPortException ex2) {
+                }
+            }
+            throw new ConfiguratorException("The port " + portName + " doesn't exists.");
+        }
+    }
+
+    public static final int DEFAULT_BAUD_RATE = 115200;
+    public static final int OPEN_TIMEOUT = 2000;
+    public static final int RECEIVE_TIMEOUT = 2000;
+
+    private static final String DEV_PREFIX = "/dev/";
+    private static final String SYS_CLASS_TTY = "/sys/class/tty";
+}
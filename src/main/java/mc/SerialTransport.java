@@ -0,0 +1,93 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TooManyListenersException;
+import purejavacomm.SerialPort;
+import purejavacomm.SerialPortEvent;
+
+/**
+ * Transport over the serial port of a board
+ *
+ * @author ideras
+ */
+public class SerialTransport implements Transport {
+
+    public SerialTransport(SerialPort serialPort) {
+        this.serialPort = serialPort;
+    }
+
+    public SerialPort getSerialPort() {
+        return serialPort;
+    }
+
+    @Override
+    public String getName() {
+        return serialPort.getName();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return serialPort.getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return serialPort.getInputStream();
+    }
+
+    @Override
+    public void setDataListener(Runnable listener) throws IOException {
+        try {
+            serialPort.addEventListener(event -> {
+                if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+                    listener.run();
+                }
+            });
+        } catch (TooManyListenersException ex) {
+            throw new IOException("The port " + serialPort.getName() + " already has a listener");
+        }
+        serialPort.notifyOnDataAvailable(true);
+    }
+
+    @Override
+    public void removeDataListener() {
+        serialPort.notifyOnDataAvailable(false);
+        serialPort.removeEventListener();
+    }
+
+    @Override
+    public void close() {
+        serialPort.close();
+    }
+
+    private final SerialPort serialPort;
+}
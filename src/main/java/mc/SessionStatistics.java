@@ -0,0 +1,309 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import mc.jfr.PhaseEvent;
+
+/**
+ * Where the time of a programming session went: wall time per phase, frames
+ * sent per packet type, round trip latencies and time waiting for the flash.
+ * The phases are also recorded as JFR events, and the whole statistics are
+ * written as a JSON report at the end of the session.
+ *
+ * @author ideras
+ */
+public class SessionStatistics {
+
+    public enum Phase {
+        DETECT, LOAD, ERASE, PROGRAM, VERIFY, RESET
+    }
+
+    public SessionStatistics(String board) {
+        this.board = board;
+    }
+
+    /*
+     * Starts a new session, clearing the previous one
+     */
+    public synchronized void start(String fileName) {
+        this.fileName = fileName;
+        startTime = Instant.now();
+        startNanos = System.nanoTime();
+        endNanos = 0;
+        successful = false;
+        imageHash = null;
+        imageSize = 0;
+        Arrays.fill(phaseNanos, 0);
+        Arrays.fill(phaseEvents, null);
+        Arrays.fill(frameCounts, 0);
+        getBytesLatency.clear();
+        checkStatusLatency.clear();
+        pipelinedReadLatency.clear();
+        busyNanos = sleepNanos = linkNanos = pollCount = 0;
+    }
+
+    public synchronized void startPhase(Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+
+        phaseEvents[phase.ordinal()] = event;
+        phaseStart[phase.ordinal()] = System.nanoTime();
+    }
+
+    public synchronized void endPhase(Phase phase) {
+        PhaseEvent event = phaseEvents[phase.ordinal()];
+        if (event == null) {
+            return;
+        }
+        phaseEvents[phase.ordinal()] = null;
+        phaseNanos[phase.ordinal()] += System.nanoTime() - phaseStart[phase.ordinal()];
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.board = board;
+            event.phase = phase.name().toLowerCase(Locale.ROOT);
+            event.commit();
+        }
+    }
+
+    /*
+     * Ends the session, closing the phases an error left open
+     */
+    public synchronized void finish(boolean successful) {
+        for (Phase phase : Phase.values()) {
+            endPhase(phase);
+        }
+        this.successful = successful;
+        endNanos = System.nanoTime();
+    }
+
+    public void frameSent(int packetType) {
+        frameCounts[packetType & (PACKET_TYPE_NAMES.length - 1)]++;
+    }
+
+    public void setImage(String imageHash, int imageSize) {
+        this.imageHash = imageHash;
+        this.imageSize = imageSize;
+    }
+
+    /*
+     * Takes the busy wait totals of the session
+     */
+    public void setBusyWait(long busyNanos, long sleepNanos, long linkNanos, long pollCount) {
+        this.busyNanos = busyNanos;
+        this.sleepNanos = sleepNanos;
+        this.linkNanos = linkNanos;
+        this.pollCount = pollCount;
+    }
+
+    public LatencyHistogram getGetBytesLatency() {
+        return getBytesLatency;
+    }
+
+    public LatencyHistogram getCheckStatusLatency() {
+        return checkStatusLatency;
+    }
+
+    /*
+     * Latency of the flash reads sent with a window of outstanding requests
+     */
+    public LatencyHistogram getPipelinedReadLatency() {
+        return pipelinedReadLatency;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getFrameCount(int packetType) {
+        return frameCounts[packetType & (PACKET_TYPE_NAMES.length - 1)];
+    }
+
+    public long getTotalFrames() {
+        long total = 0;
+        for (long count : frameCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public String getBoard() {
+        return board;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        long totalNanos = ((endNanos != 0)? endNanos : System.nanoTime()) - startNanos;
+
+        sb.append("{\n");
+        field(sb, 1, "board", board).append(",\n");
+        field(sb, 1, "file", fileName).append(",\n");
+        field(sb, 1, "imageSha256", imageHash).append(",\n");
+        field(sb, 1, "imageSize", imageSize).append(",\n");
+        field(sb, 1, "started", String.valueOf(startTime)).append(",\n");
+        field(sb, 1, "successful", successful).append(",\n");
+        field(sb, 1, "totalSeconds", seconds(totalNanos)).append(",\n");
+
+        indent(sb, 1).append("\"phases\": {\n");
+        for (Phase phase : Phase.values()) {
+            field(sb, 2, phase.name().toLowerCase(Locale.ROOT), seconds(phaseNanos[phase.ordinal()]));
+            sb.append((phase.ordinal() < Phase.values().length - 1)? ",\n" : "\n");
+        }
+        indent(sb, 1).append("},\n");
+
+        indent(sb, 1).append("\"frames\": {\n");
+        field(sb, 2, "total", getTotalFrames());
+        for (int type = 0; type < frameCounts.length; type++) {
+            if (frameCounts[type] > 0) {
+                sb.append(",\n");
+                field(sb, 2, PACKET_TYPE_NAMES[type], frameCounts[type]);
+            }
+        }
+        sb.append("\n");
+        indent(sb, 1).append("},\n");
+
+        indent(sb, 1).append("\"latency\": {\n");
+        histogram(sb, "getBytes", getBytesLatency).append(",\n");
+        histogram(sb, "checkStatus", checkStatusLatency).append(",\n");
+        histogram(sb, "pipelinedRead", pipelinedReadLatency).append("\n");
+        indent(sb, 1).append("},\n");
+
+        indent(sb, 1).append("\"busyWait\": {\n");
+        field(sb, 2, "seconds", seconds(busyNanos)).append(",\n");
+        field(sb, 2, "sleepSeconds", seconds(sleepNanos)).append(",\n");
+        field(sb, 2, "linkSeconds", seconds(linkNanos)).append(",\n");
+        field(sb, 2, "polls", pollCount).append("\n");
+        indent(sb, 1).append("},\n");
+
+        indent(sb, 1).append("\"host\": {\n");
+        field(sb, 2, "os", System.getProperty("os.name") + " " + System.getProperty("os.version")).append(",\n");
+        field(sb, 2, "java", System.getProperty("java.version")).append(",\n");
+        field(sb, 2, "processors", Runtime.getRuntime().availableProcessors()).append("\n");
+        indent(sb, 1).append("}\n");
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StringBuilder histogram(StringBuilder sb, String name, LatencyHistogram histogram) {
+        indent(sb, 2).append('"').append(name).append("\": {\n");
+        field(sb, 3, "count", histogram.getCount()).append(",\n");
+        field(sb, 3, "meanUs", histogram.getMeanNanos() / 1000).append(",\n");
+        field(sb, 3, "minUs", histogram.getMinNanos() / 1000).append(",\n");
+        field(sb, 3, "maxUs", histogram.getMaxNanos() / 1000).append(",\n");
+        field(sb, 3, "p50Us", histogram.getPercentileMicros(0.5)).append(",\n");
+        field(sb, 3, "p90Us", histogram.getPercentileMicros(0.9)).append(",\n");
+        field(sb, 3, "p99Us", histogram.getPercentileMicros(0.99)).append(",\n");
+
+        // Bucket n counts the round trips below 2^n us
+        indent(sb, 3).append("\"log2UsBuckets\": [");
+        long[] buckets = histogram.getBuckets();
+        for (int i = 0; i < buckets.length; i++) {
+            sb.append((i > 0)? ", " : "").append(buckets[i]);
+        }
+        sb.append("]\n");
+        return indent(sb, 2).append('}');
+    }
+
+    private static StringBuilder field(StringBuilder sb, int level, String name, Object value) {
+        indent(sb, level).append('"').append(name).append("\": ");
+
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            quote(sb, (String) value);
+        } else {
+            sb.append(value);
+        }
+        return sb;
+    }
+
+    private static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static StringBuilder indent(StringBuilder sb, int level) {
+        for (int i = 0; i < level; i++) {
+            sb.append("  ");
+        }
+        return sb;
+    }
+
+    private static double seconds(long nanos) {
+        return Math.round(nanos / 1e6) / 1e3;
+    }
+
+    private final String board;
+    private String fileName;
+    private String imageHash;
+    private int imageSize;
+    private Instant startTime;
+    private long startNanos;
+    private long endNanos;
+    private boolean successful;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final long[] phaseStart = new long[Phase.values().length];
+    private final PhaseEvent[] phaseEvents = new PhaseEvent[Phase.values().length];
+    private final long[] frameCounts = new long[PACKET_TYPE_NAMES.length];
+    private final LatencyHistogram getBytesLatency = new LatencyHistogram();
+    private final LatencyHistogram checkStatusLatency = new LatencyHistogram();
+    private final LatencyHistogram pipelinedReadLatency = new LatencyHistogram();
+    private long busyNanos;
+    private long sleepNanos;
+    private long linkNanos;
+    private long pollCount;
+
+    // Names of the CONFIG_OUT_PACKET_* types, by value
+    private static final String[] PACKET_TYPE_NAMES = {
+        "spiOpen", "spiClose", "spiGetString", "spiPutString", "spiGetStringAtAddress", "spiPutStringAtAddress",
+        "spiGetChar", "spiPutChar", "spiSetIoDir", "spiSetIoValue", "spiGetIoValue", "spiGetAllIoValues",
+        "unknown12", "unknown13", "unknown14", "unknown15"
+    };
+}
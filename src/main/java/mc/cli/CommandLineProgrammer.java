@@ -0,0 +1,574 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mc.BoardDiscovery;
+import mc.ConfiguratorException;
+import mc.FlashDumper;
+import mc.LinkCalibrator;
+import mc.LinkProfile;
+import mc.MimasV2ConfigDownloader;
+import mc.SerialPorts;
+import mc.Transport;
+import mc.daemon.PortSession;
+import mc.daemon.ProgrammingDaemon;
+import mc.event.ProgressEventBus;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Headless programming mode.  Programs the same image on every board given in
+ * the command line, using one worker thread per serial port.
+ *
+ * @author ideras
+ */
+public class CommandLineProgrammer {
+
+    public CommandLineProgrammer(PrintStream out) {
+        this.out = out;
+    }
+
+    /*
+     * Parses the command line arguments and programs all the boards.
+     * @return The process exit code
+     */
+    public int execute(String[] args) {
+        try {
+            parseArguments(args);
+        } catch (IllegalArgumentException ex) {
+            out.println("Error: " + ex.getMessage());
+            printUsage();
+            return EXIT_USAGE;
+        }
+
+        if (showHelp) {
+            printUsage();
+            return EXIT_OK;
+        }
+
+        if (dumpFile != null) {
+            return dumpBoard(portPatterns.get(0));
+        }
+
+        if (daemon) {
+            return runDaemon();
+        }
+
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            out.println("Error: cannot read programming file " + fileName);
+            return EXIT_USAGE;
+        }
+
+        List<String> ports;
+        if (allBoards) {
+            ports = findBoards();
+            if (ports.isEmpty()) {
+                out.println("Error: no Mimas V2 board found");
+                return EXIT_FAILURE;
+            }
+        } else {
+            ports = SerialPorts.expand(portPatterns);
+            if (ports.isEmpty()) {
+                out.println("Error: no serial port matches " + portPatterns);
+                return EXIT_USAGE;
+            }
+        }
+
+        out.println("Programming " + file.getName() + " on " + ports.size() + " board(s): " + ports);
+
+        // Workers only queue their events, a single thread prints them all
+        printer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "console-printer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(ports.size());
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for (String port : ports) {
+            results.add(executor.submit(() -> programBoard(port)));
+        }
+        executor.shutdown();
+
+        List<String> failedPorts = new ArrayList<>();
+        for (int i = 0; i < ports.size(); i++) {
+            boolean ok;
+            try {
+                ok = results.get(i).get();
+            } catch (InterruptedException | ExecutionException ex) {
+                ok = false;
+            }
+            if (!ok) {
+                failedPorts.add(ports.get(i));
+            }
+        }
+
+        printer.shutdown();
+
+        long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+        out.println("Programmed " + (ports.size() - failedPorts.size()) + " of " + ports.size()
+                    + " board(s) in " + (elapsedMs / 1000.0) + " s");
+
+        if (!failedPorts.isEmpty()) {
+            out.println("Failed boards: " + failedPorts);
+            return EXIT_FAILURE;
+        }
+        return EXIT_OK;
+    }
+
+    /*
+     * Probes every serial port and returns the ones with a Mimas V2
+     */
+    private List<String> findBoards() {
+        long startTime = System.nanoTime();
+        List<String> boards = new ArrayList<>();
+
+        for (BoardDiscovery.BoardInfo info : new BoardDiscovery().discover()) {
+            if (info.isMimasV2()) {
+                boards.add(info.getPortName());
+            } else {
+                out.println("Skipping " + info);
+            }
+        }
+
+        long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+        out.println("Found " + boards.size() + " board(s) in " + elapsedMs + " ms");
+        return boards;
+    }
+
+    /*
+     * Programs the board connected to the given port. Runs on its own worker thread.
+     */
+    private boolean programBoard(String portName) {
+        ConsoleProgressListener listener = new ConsoleProgressListener(portName, out);
+        ProgressEventBus eventBus = new ProgressEventBus(portName);
+        ProgressEventBus.Subscription subscription = eventBus.subscribe(listener, printer);
+
+        boolean ok = programBoard(portName, eventBus);
+
+        eventBus.unsubscribe(subscription);
+        drain(subscription, listener);
+        return ok && !listener.hasErrors();
+    }
+
+    private boolean programBoard(String portName, ProgressEventBus eventBus) {
+        Transport transport;
+
+        try {
+            transport = SerialPorts.openTransport(portName, baudRate);
+        } catch (ConfiguratorException ex) {
+            eventBus.errorMessage(ex.getMessage());
+            return false;
+        }
+
+        try {
+            MimasV2ConfigDownloader configDownloader = new MimasV2ConfigDownloader(transport, fileName, eventBus, verifyFlash);
+            configure(configDownloader);
+            applyLinkProfile(configDownloader, portName, eventBus);
+
+            // The session detects the board and reports an unknown one
+            configDownloader.run();
+            return configDownloader.isSuccessful();
+        } finally {
+            transport.close();
+        }
+    }
+
+    /*
+     * Applies the command line options to a downloader
+     */
+    private void configure(MimasV2ConfigDownloader configDownloader) {
+        configDownloader.setDifferential(differential);
+        configDownloader.setPreserveOutsideImage(preserveOutsideImage);
+        configDownloader.setCommandBatching(commandBatching);
+        configDownloader.setEventDrivenReceive(eventDrivenReceive);
+        configDownloader.setReadWindow(readWindow);
+        configDownloader.setPageVerifyMode(pageVerifyMode);
+        if (!journaling) {
+            configDownloader.setJournalDirectory(null);
+        }
+        if (!flashCaching) {
+            configDownloader.setFlashStateCache(null);
+        }
+        if (!reporting) {
+            configDownloader.setReportDirectory(null);
+        } else if (reportDirectory != null) {
+            configDownloader.setReportDirectory(new File(reportDirectory));
+        }
+    }
+
+    /*
+     * Serves programming jobs over HTTP until the process is stopped, keeping
+     * the ports open between jobs
+     */
+    private int runDaemon() {
+        ProgrammingDaemon daemon = new ProgrammingDaemon(listenPort, baudRate, new PortSession.Setup() {
+            @Override
+            public void configure(MimasV2ConfigDownloader downloader) {
+                CommandLineProgrammer.this.configure(downloader);
+            }
+
+            @Override
+            public void calibrate(MimasV2ConfigDownloader downloader, ProgrammingProgressListener listener) {
+                applyLinkProfile(downloader, downloader.getTransport().getName(), listener);
+            }
+        });
+
+        daemon.setVerifyFlash(verifyFlash);
+        daemon.setDifferential(differential);
+        try {
+            daemon.start();
+        } catch (IOException ex) {
+            out.println("Error: cannot listen on port " + listenPort + ": " + ex.getMessage());
+            return EXIT_FAILURE;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+
+        // The ports given are opened and their boards detected right away
+        List<String> ports = SerialPorts.expand(portPatterns);
+        for (String port : ports) {
+            daemon.openPort(port);
+        }
+        out.println("Listening on http://localhost:" + daemon.getListenPort() + "/ (opening " + ports.size() + " port(s))");
+
+        try {
+            daemon.awaitStop();
+        } catch (InterruptedException ex) {
+            daemon.stop();
+        }
+        return EXIT_OK;
+    }
+
+    /*
+     * Reads the flash of the board on the given port into dumpFile
+     */
+    private int dumpBoard(String portName) {
+        ConsoleProgressListener listener = new ConsoleProgressListener(portName, out);
+        Transport transport;
+
+        try {
+            transport = SerialPorts.openTransport(portName, baudRate);
+        } catch (ConfiguratorException ex) {
+            listener.errorMessage(ex.getMessage());
+            return EXIT_FAILURE;
+        }
+
+        try {
+            MimasV2ConfigDownloader configDownloader = new MimasV2ConfigDownloader(transport, null, listener, false);
+            configDownloader.setEventDrivenReceive(eventDrivenReceive);
+            configDownloader.setCommandBatching(commandBatching);
+            configDownloader.setReadWindow(readWindow);
+
+            if (!configDownloader.boardIsMimasV2()) {
+                listener.errorMessage("Cannot detect a Mimas V2 board connected to the port.");
+                return EXIT_FAILURE;
+            }
+            applyLinkProfile(configDownloader, portName, listener);
+
+            FlashDumper.DumpResult result = new FlashDumper(configDownloader, listener).dump(dumpAddress, dumpLength, new File(dumpFile));
+            out.println("Read " + result);
+            return EXIT_OK;
+        } catch (ConfiguratorException | IOException ex) {
+            listener.errorMessage(ex.getMessage());
+            return EXIT_FAILURE;
+        } finally {
+            transport.close();
+        }
+    }
+
+    /*
+     * Applies the link profile of the port, calibrating the link if needed
+     */
+    private void applyLinkProfile(MimasV2ConfigDownloader configDownloader, String portName, ProgrammingProgressListener listener) {
+        if (calibration == Calibration.OFF) {
+            return;
+        }
+        try {
+            LinkProfile profile = LinkCalibrator.getProfile(configDownloader, portName, baudRate, calibration == Calibration.FORCE);
+            profile.applyTo(configDownloader);
+            if (readWindowGiven) {
+                configDownloader.setReadWindow(readWindow);
+            }
+            listener.logMessage("Link: " + profile);
+        } catch (ConfiguratorException | IOException ex) {
+            listener.logMessage("Link calibration failed, using the default settings: " + ex.getMessage());
+        }
+    }
+
+    /*
+     * Waits until the printer has handled all the events published so far
+     */
+    private void drain(ProgressEventBus.Subscription subscription, ConsoleProgressListener listener) {
+        try {
+            printer.submit(() -> subscription.drainTo(listener)).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            listener.errorMessage(String.valueOf(ex.getCause()));
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        List<String> positional = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-v":
+                case "--verify":
+                    verifyFlash = true;
+                    break;
+                case "-d":
+                case "--differential":
+                    differential = true;
+                    break;
+                case "--no-preserve":
+                    preserveOutsideImage = false;
+                    break;
+                case "--no-batch":
+                    commandBatching = false;
+                    break;
+                case "--no-events":
+                    eventDrivenReceive = false;
+                    break;
+                case "--no-journal":
+                    journaling = false;
+                    break;
+                case "--no-flash-cache":
+                    flashCaching = false;
+                    break;
+                case "--report":
+                    reportDirectory = nextArgument(args, ++i);
+                    break;
+                case "--no-report":
+                    reporting = false;
+                    break;
+                case "--verify-pages":
+                    pageVerifyMode = parsePageVerifyMode(nextArgument(args, ++i));
+                    break;
+                case "--read-window":
+                    readWindow = parseInt(arg, nextArgument(args, ++i));
+                    readWindowGiven = true;
+                    break;
+                case "--dump":
+                    dumpFile = nextArgument(args, ++i);
+                    break;
+                case "--address":
+                    dumpAddress = parseInt(arg, nextArgument(args, ++i));
+                    break;
+                case "--length":
+                    dumpLength = parseInt(arg, nextArgument(args, ++i));
+                    break;
+                case "--baud":
+                    baudRate = parseInt(arg, nextArgument(args, ++i));
+                    break;
+                case "--calibrate":
+                    calibration = Calibration.FORCE;
+                    break;
+                case "--no-calibrate":
+                    calibration = Calibration.OFF;
+                    break;
+                case "--daemon":
+                    daemon = true;
+                    break;
+                case "--listen":
+                    listenPort = parseInt(arg, nextArgument(args, ++i));
+                    break;
+                case "-a":
+                case "--all":
+                    allBoards = true;
+                    break;
+                case "-h":
+                case "--help":
+                    showHelp = true;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    }
+                    positional.add(arg);
+                    break;
+            }
+        }
+
+        if (showHelp) {
+            return;
+        }
+        if (readWindow < 1) {
+            throw new IllegalArgumentException("the read window must be at least 1");
+        }
+        if (daemon) {
+            if (allBoards || dumpFile != null) {
+                throw new IllegalArgumentException("--daemon takes only the serial ports to open");
+            }
+            portPatterns = positional;
+            return;
+        }
+        if (dumpFile != null) {
+            if (allBoards || positional.size() != 1) {
+                throw new IllegalArgumentException("expected a single serial port with --dump");
+            }
+            portPatterns = positional;
+            return;
+        }
+        if (allBoards) {
+            if (positional.size() != 1) {
+                throw new IllegalArgumentException("expected only a programming file with --all");
+            }
+        } else if (positional.size() < 2) {
+            throw new IllegalArgumentException("expected a programming file and at least one serial port");
+        }
+        fileName = positional.get(0);
+        portPatterns = positional.subList(1, positional.size());
+    }
+
+    private static MimasV2ConfigDownloader.PageVerifyMode parsePageVerifyMode(String value) {
+        switch (value) {
+            case "abort":
+                return MimasV2ConfigDownloader.PageVerifyMode.ABORT;
+            case "reprogram":
+                return MimasV2ConfigDownloader.PageVerifyMode.REPROGRAM;
+            default:
+                throw new IllegalArgumentException("invalid value for --verify-pages: " + value);
+        }
+    }
+
+    private static String nextArgument(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("option " + args[index - 1] + " requires a value");
+        }
+        return args[index];
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            // Addresses are easier to give in hex
+            if (value.startsWith("0x") || value.startsWith("0X")) {
+                return Integer.parseInt(value.substring(2), 16);
+            }
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid value for " + option + ": " + value);
+        }
+    }
+
+    private void printUsage() {
+        out.println("Usage: java -jar MimasV2Configurator.jar [options] <file.bin|file.bit|file.layout> <port|glob>...");
+        out.println("       java -jar MimasV2Configurator.jar [options] --all <file.bin|file.bit|file.layout>");
+        out.println("       java -jar MimasV2Configurator.jar [options] --dump <file> <port>");
+        out.println("       java -jar MimasV2Configurator.jar [options] --daemon [port|glob]...");
+        out.println();
+        out.println("Programs every board given at once, i.e. /dev/ttyACM0 /dev/ttyACM1 or '/dev/ttyACM*'.");
+        out.println("A .layout file lists several images to write in one session, one \"offset file\" per line.");
+        out.println("Run without arguments to start the graphical interface.  Ports named sim:<name> are");
+        out.println("simulated boards, i.e. sim:0 sim:1.");
+        out.println();
+        out.println("Options:");
+        out.println("  -a, --all       Program every Mimas V2 found on the serial ports");
+        out.println("  --dump <file>   Read the flash of the board into file instead of programming it");
+        out.println("  --address <n>   First flash address to read with --dump (default 0)");
+        out.println("  --length <n>    Number of bytes to read with --dump (default the whole 2 MB flash)");
+        out.println("  --daemon        Keep the ports open and program the jobs submitted over HTTP, i.e.");
+        out.println("                  curl -X POST 'http://localhost:" + ProgrammingDaemon.DEFAULT_PORT
+                    + "/jobs?port=/dev/ttyACM0&file=/path/design.bin&verify=true'");
+        out.println("  --listen <n>    Local TCP port of the daemon (default " + ProgrammingDaemon.DEFAULT_PORT + ")");
+        out.println("  -v, --verify    Verify flash contents after programming");
+        out.println("  --verify-pages abort|reprogram");
+        out.println("                  Verify every page right after programming it and stop, or erase and");
+        out.println("                  program its sector again, when it doesn't match");
+        out.println("  -d, --differential");
+        out.println("                  Only erase and program the sectors that differ from the image");
+        out.println("  --no-preserve   Allow erasing the flash after the image (enables bulk erase)");
+        out.println("  --no-batch      Write every command frame on its own instead of packing the queued");
+        out.println("                  frames in 30 byte writes (about 20% more writes)");
+        out.println("  --no-events     Read responses with fixed delays instead of port events");
+        out.println("  --no-journal    Don't record the session to resume it if interrupted");
+        out.println("  --no-flash-cache");
+        out.println("                  Program every sector even if the board already holds the image");
+        out.println("  --report <dir>  Write the JSON report of every session to dir (default ~/.mimasv2/reports)");
+        out.println("  --no-report     Don't write session reports");
+        out.println("  --baud <n>      Baud rate of the serial ports (default " + SerialPorts.DEFAULT_BAUD_RATE + ")");
+        out.println("  --calibrate     Measure the link of every board again instead of using the stored profile");
+        out.println("  --no-calibrate  Use the default link settings");
+        out.println("  --read-window <n>");
+        out.println("                  Number of flash read requests kept in flight (default "
+                    + MimasV2ConfigDownloader.READ_WINDOW + ")");
+        out.println("  -h, --help      Show this help");
+    }
+
+    /*
+     * How the link settings are chosen
+     */
+    private enum Calibration {
+        OFF,
+        // Use the stored profile, calibrate if there is none
+        STORED,
+        FORCE
+    }
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILURE = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private final PrintStream out;
+    private ExecutorService printer;
+    private String fileName;
+    private List<String> portPatterns;
+    private boolean verifyFlash;
+    private boolean differential;
+    private boolean preserveOutsideImage = true;
+    private boolean commandBatching = true;
+    private boolean eventDrivenReceive = true;
+    private boolean journaling = true;
+    private boolean flashCaching = true;
+    private boolean daemon;
+    private int listenPort = ProgrammingDaemon.DEFAULT_PORT;
+    private boolean reporting = true;
+    private String reportDirectory;
+    private int readWindow = MimasV2ConfigDownloader.READ_WINDOW;
+    private boolean readWindowGiven;
+    private int baudRate = SerialPorts.DEFAULT_BAUD_RATE;
+    private Calibration calibration = Calibration.STORED;
+    private MimasV2ConfigDownloader.PageVerifyMode pageVerifyMode = MimasV2ConfigDownloader.PageVerifyMode.OFF;
+    private boolean allBoards;
+    private String dumpFile;
+    private int dumpAddress;
+    private int dumpLength = MimasV2ConfigDownloader.M25P16_FLASH_SIZE;
+    private boolean showHelp;
+}
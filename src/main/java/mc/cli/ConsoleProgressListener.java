@@ -0,0 +1,105 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.cli;
+
+import java.io.PrintStream;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Prints the progress of one board to the console.  Every line is prefixed with
+ * the board name so several boards can share the same output.
+ *
+ * @author ideras
+ */
+public class ConsoleProgressListener implements ProgrammingProgressListener {
+
+    public ConsoleProgressListener(String boardName, PrintStream out) {
+        this.boardName = boardName;
+        this.out = out;
+    }
+
+    public boolean hasErrors() {
+        return hasErrors;
+    }
+
+    @Override
+    public void initProgress(int maxValue) {
+        this.maxValue = maxValue;
+        this.lastPercent = -1;
+    }
+
+    @Override
+    public void updateProgress(int value) {
+        if (maxValue <= 0) {
+            return;
+        }
+        int percent = (int) ((long) value * 100 / maxValue);
+
+        // Only print every PROGRESS_STEP percent, otherwise the output gets flooded
+        if (percent / PROGRESS_STEP != lastPercent / PROGRESS_STEP) {
+            lastPercent = percent;
+            print(title + " " + percent + "%");
+        }
+    }
+
+    @Override
+    public void logMessage(String message) {
+        print(message);
+    }
+
+    @Override
+    public void updateTitle(String message) {
+        title = message;
+        print(message);
+    }
+
+    @Override
+    public void errorMessage(String message) {
+        hasErrors = true;
+        print("ERROR: " + message);
+    }
+
+    @Override
+    public void programmingDone() {
+    }
+
+    private void print(String message) {
+        synchronized (out) {
+            out.println("[" + boardName + "] " + message);
+        }
+    }
+
+    private final String boardName;
+    private final PrintStream out;
+    private volatile boolean hasErrors;
+    private String title = "";
+    private int maxValue;
+    private int lastPercent;
+
+    private static final int PROGRESS_STEP = 10;
+}
@@ -0,0 +1,249 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.daemon;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Locale;
+import mc.SessionStatistics;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * A request to program a file on the board of a port.  The job is the progress
+ * listener of its session, so it keeps the latest log lines, the progress and
+ * the timings: time waiting in the queue, time programming and the phases of
+ * the session.
+ *
+ * @author ideras
+ */
+public class FlashJob implements ProgrammingProgressListener {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    public FlashJob(long id, String portName, String fileName, boolean verifyFlash, boolean differential) {
+        this.id = id;
+        this.portName = portName;
+        this.fileName = fileName;
+        this.verifyFlash = verifyFlash;
+        this.differential = differential;
+        this.submitted = new Date();
+        this.submitNanos = System.nanoTime();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPortName() {
+        return portName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isVerifyFlash() {
+        return verifyFlash;
+    }
+
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /*
+     * Time spent in the queue, up to now if the job hasn't started
+     */
+    public synchronized long getQueueNanos() {
+        return ((startNanos != 0)? startNanos : System.nanoTime()) - submitNanos;
+    }
+
+    /*
+     * Time spent running, up to now if the job hasn't finished
+     */
+    public synchronized long getRunNanos() {
+        if (startNanos == 0) {
+            return 0;
+        }
+        return ((endNanos != 0)? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    synchronized boolean cancel() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        finish(State.CANCELLED, "cancelled");
+        return true;
+    }
+
+    synchronized void started() {
+        state = State.RUNNING;
+        startNanos = System.nanoTime();
+    }
+
+    synchronized void finished(boolean successful, SessionStatistics statistics) {
+        if (statistics != null) {
+            phaseNanos = new long[SessionStatistics.Phase.values().length];
+            for (SessionStatistics.Phase phase : SessionStatistics.Phase.values()) {
+                phaseNanos[phase.ordinal()] = statistics.getPhaseNanos(phase);
+            }
+            frames = statistics.getTotalFrames();
+        }
+        finish((successful && error == null)? State.SUCCEEDED : State.FAILED, null);
+    }
+
+    synchronized void failed(String message) {
+        finish(State.FAILED, message);
+    }
+
+    private void finish(State finalState, String message) {
+        if (message != null) {
+            errorMessage(message);
+        }
+        state = finalState;
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        endNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    /*
+     * Waits until the job is finished or the timeout elapses
+     */
+    public synchronized State await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+
+        while (!state.isFinished() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return state;
+    }
+
+    @Override
+    public synchronized void initProgress(int maxValue) {
+        this.maxProgress = maxValue;
+        this.progress = 0;
+    }
+
+    @Override
+    public synchronized void updateProgress(int value) {
+        this.progress = value;
+    }
+
+    @Override
+    public synchronized void logMessage(String message) {
+        if (log.size() == MAX_LOG_LINES) {
+            log.removeFirst();
+        }
+        log.addLast(message);
+    }
+
+    @Override
+    public synchronized void updateTitle(String message) {
+        title = message;
+    }
+
+    @Override
+    public synchronized void errorMessage(String message) {
+        if (error == null) {
+            error = message;
+        }
+        logMessage("ERROR: " + message);
+    }
+
+    @Override
+    public void programmingDone() {
+    }
+
+    synchronized void toJson(JsonBuilder json, boolean withLog) {
+        json.beginObject();
+        json.field("id", id);
+        json.field("port", portName);
+        json.field("file", fileName);
+        json.field("verify", verifyFlash);
+        json.field("differential", differential);
+        json.field("state", state.name().toLowerCase(Locale.ROOT));
+        json.field("submitted", submitted.toString());
+        json.field("title", title);
+        json.field("progress", (maxProgress > 0)? (int) ((long) progress * 100 / maxProgress) : 0);
+        json.field("error", error);
+
+        json.name("timings").beginObject();
+        json.seconds("queueSeconds", getQueueNanos());
+        json.seconds("runSeconds", getRunNanos());
+        if (phaseNanos != null) {
+            for (SessionStatistics.Phase phase : SessionStatistics.Phase.values()) {
+                json.seconds(phase.name().toLowerCase(Locale.ROOT) + "Seconds", phaseNanos[phase.ordinal()]);
+            }
+            json.field("frames", frames);
+        }
+        json.endObject();
+
+        if (withLog) {
+            json.name("log").beginArray();
+            for (String line : log) {
+                json.value(line);
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    private final long id;
+    private final String portName;
+    private final String fileName;
+    private final boolean verifyFlash;
+    private final boolean differential;
+    private final Date submitted;
+    private final long submitNanos;
+    private long startNanos;
+    private long endNanos;
+    private State state = State.QUEUED;
+    private String title = "";
+    private String error;
+    private int progress;
+    private int maxProgress;
+    private long[] phaseNanos;
+    private long frames;
+    private final Deque<String> log = new ArrayDeque<>();
+
+    private static final int MAX_LOG_LINES = 200;
+}
@@ -0,0 +1,137 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.daemon;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Builds the compact JSON answers of the daemon API.  Commas are added as the
+ * fields and values are appended.
+ *
+ * @author ideras
+ */
+class JsonBuilder {
+
+    JsonBuilder beginObject() {
+        separate();
+        sb.append('{');
+        firsts.push(true);
+        return this;
+    }
+
+    JsonBuilder endObject() {
+        firsts.pop();
+        sb.append('}');
+        return this;
+    }
+
+    JsonBuilder beginArray() {
+        separate();
+        sb.append('[');
+        firsts.push(true);
+        return this;
+    }
+
+    JsonBuilder endArray() {
+        firsts.pop();
+        sb.append(']');
+        return this;
+    }
+
+    /*
+     * Starts a field, the next value, object or array is its value
+     */
+    JsonBuilder name(String name) {
+        separate();
+        quote(name);
+        sb.append(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonBuilder value(Object value) {
+        separate();
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            quote(value.toString());
+        }
+        return this;
+    }
+
+    JsonBuilder field(String name, Object value) {
+        return name(name).value(value);
+    }
+
+    /*
+     * Seconds with millisecond resolution from a nanosecond interval
+     */
+    JsonBuilder seconds(String name, long nanos) {
+        return field(name, Math.round(nanos / 1e6) / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (!firsts.isEmpty()) {
+            if (!firsts.pop()) {
+                sb.append(',');
+            }
+            firsts.push(false);
+        }
+    }
+
+    private void quote(String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private final StringBuilder sb = new StringBuilder();
+    private final Deque<Boolean> firsts = new ArrayDeque<>();
+    private boolean afterName;
+}
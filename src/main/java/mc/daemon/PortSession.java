@@ -0,0 +1,354 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.daemon;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import mc.ConfiguratorException;
+import mc.MimasV2ConfigDownloader;
+import mc.SerialPorts;
+import mc.Transport;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * A port kept open by the daemon along with the downloader of its board.  The
+ * port is opened, the board detected and the link calibrated on the first job,
+ * the following jobs reuse them.  Jobs are run in order by a thread of its own,
+ * so the boards of different ports are programmed at the same time.  After a
+ * failed job the board is checked again and the port is closed if it doesn't
+ * answer, to be opened again by the next job.
+ *
+ * @author ideras
+ */
+public class PortSession {
+
+    public enum State {
+        IDLE, OPENING, BUSY, NO_BOARD, CLOSED
+    }
+
+    /*
+     * Prepares the downloader of a port: configure is called when it is
+     * created, calibrate once the board has been detected
+     */
+    public interface Setup {
+        public void configure(MimasV2ConfigDownloader downloader);
+        public void calibrate(MimasV2ConfigDownloader downloader, ProgrammingProgressListener listener);
+    }
+
+    public PortSession(String portName, int baudRate, Setup setup) {
+        this.portName = portName;
+        this.baudRate = baudRate;
+        this.setup = setup;
+        this.openRequest = new FlashJob(0, portName, null, false, false);
+        this.thread = new Thread(this::runJobs, "session-" + portName);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public String getPortName() {
+        return portName;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized FlashJob getCurrentJob() {
+        return currentJob;
+    }
+
+    public void submit(FlashJob job) {
+        queue.addLast(job);
+    }
+
+    /*
+     * Removes a job that is still waiting in the queue
+     */
+    public boolean cancel(FlashJob job) {
+        return queue.remove(job) && job.cancel();
+    }
+
+    /*
+     * Opens the port ahead of the first job
+     */
+    public void open() {
+        queue.addFirst(openRequest);
+    }
+
+    /*
+     * True if there is no job running nor waiting
+     */
+    public synchronized boolean isIdle() {
+        return currentJob == null && queue.isEmpty();
+    }
+
+    public void close() {
+        thread.interrupt();
+    }
+
+    private void runJobs() {
+        try {
+            while (true) {
+                FlashJob job = queue.takeFirst();
+                if (job == openRequest) {
+                    openIfClosed(null);
+                    setState(isOpen()? State.IDLE : State.NO_BOARD);
+                    continue;
+                }
+                try {
+                    runJob(job);
+                } catch (RuntimeException ex) {
+                    // Start over with the port closed, the session keeps serving its queue
+                    job.failed(String.valueOf(ex));
+                    jobsFailed++;
+                    closeTransport();
+                    endJob(State.NO_BOARD);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // The daemon is stopping
+        } finally {
+            closeTransport();
+            setState(State.CLOSED);
+            FlashJob job;
+            while ((job = queue.pollFirst()) != null) {
+                if (job != openRequest) {
+                    job.cancel();
+                }
+            }
+        }
+    }
+
+    private void runJob(FlashJob job) {
+        synchronized (this) {
+            currentJob = job;
+        }
+        job.started();
+
+        if (!openIfClosed(job)) {
+            job.failed("No Mimas V2 board on " + portName);
+            jobsFailed++;
+            endJob(State.NO_BOARD);
+            return;
+        }
+        setState(State.BUSY);
+
+        downloader.setListener(job);
+        downloader.setFileName(job.getFileName());
+        downloader.setVerifyFlash(job.isVerifyFlash());
+        downloader.setDifferential(job.isDifferential());
+        downloader.run();
+        job.finished(downloader.isSuccessful(), downloader.getStatistics());
+        downloader.setListener(sessionLog);
+
+        if (downloader.isSuccessful()) {
+            jobsSucceeded++;
+        } else {
+            jobsFailed++;
+            // The board may be gone, find out now rather than in the next job
+            if (!detect(sessionLog)) {
+                closeTransport();
+            }
+        }
+        endJob(isOpen()? State.IDLE : State.NO_BOARD);
+    }
+
+    private void endJob(State newState) {
+        synchronized (this) {
+            currentJob = null;
+            state = newState;
+        }
+    }
+
+    /*
+     * Opens the port and detects the board unless already done
+     */
+    private boolean openIfClosed(ProgrammingProgressListener listener) {
+        if (isOpen()) {
+            return true;
+        }
+        ProgrammingProgressListener log = (listener != null)? listener : sessionLog;
+        setState(State.OPENING);
+
+        long start = System.nanoTime();
+        try {
+            transport = SerialPorts.openTransport(portName, baudRate);
+        } catch (ConfiguratorException ex) {
+            log.errorMessage(ex.getMessage());
+            return false;
+        }
+        openNanos = System.nanoTime() - start;
+        opens++;
+
+        downloader = new MimasV2ConfigDownloader(transport, null, log, false);
+        setup.configure(downloader);
+
+        start = System.nanoTime();
+        boolean found = detect(log);
+        detectNanos = System.nanoTime() - start;
+        if (!found) {
+            closeTransport();
+            return false;
+        }
+
+        start = System.nanoTime();
+        setup.calibrate(downloader, log);
+        downloader.setListener(sessionLog);
+        calibrateNanos = System.nanoTime() - start;
+
+        log.logMessage(String.format("Opened %s in %.3f s (detection %.3f s, calibration %.3f s)", portName,
+                                     openNanos / 1e9, detectNanos / 1e9, calibrateNanos / 1e9));
+        return true;
+    }
+
+    private boolean detect(ProgrammingProgressListener log) {
+        try {
+            flashId = downloader.readFlashId();
+            if (flashId == MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16) {
+                return true;
+            }
+            log.logMessage("Unknown flash part: '" + Integer.toHexString(flashId) + "'");
+        } catch (ConfiguratorException | IOException ex) {
+            log.logMessage("The board doesn't answer: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    private boolean isOpen() {
+        return transport != null;
+    }
+
+    private void closeTransport() {
+        if (transport != null) {
+            downloader.detach();
+            transport.close();
+            transport = null;
+            downloader = null;
+        }
+    }
+
+    private synchronized void setState(State newState) {
+        state = newState;
+    }
+
+    synchronized void toJson(JsonBuilder json) {
+        json.beginObject();
+        json.field("port", portName);
+        json.field("state", state.name().toLowerCase(Locale.ROOT));
+        json.field("flashId", (flashId != 0)? String.format("%06x", flashId) : null);
+        json.field("queueDepth", getQueueDepth());
+        json.field("currentJob", (currentJob != null)? currentJob.getId() : null);
+        json.field("jobsSucceeded", jobsSucceeded);
+        json.field("jobsFailed", jobsFailed);
+        json.field("opens", opens);
+        json.seconds("openSeconds", openNanos);
+        json.seconds("detectSeconds", detectNanos);
+        json.seconds("calibrateSeconds", calibrateNanos);
+        json.name("log").beginArray();
+        for (String line : sessionLog.getLines()) {
+            json.value(line);
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    /*
+     * Keeps the latest messages logged outside the jobs, i.e. while opening the port
+     */
+    private static class SessionLog implements ProgrammingProgressListener {
+
+        synchronized List<String> getLines() {
+            return new ArrayList<>(lines);
+        }
+
+        @Override
+        public void initProgress(int maxValue) {
+        }
+
+        @Override
+        public void updateProgress(int value) {
+        }
+
+        @Override
+        public synchronized void logMessage(String message) {
+            if (lines.size() == MAX_LOG_LINES) {
+                lines.removeFirst();
+            }
+            lines.addLast(message);
+        }
+
+        @Override
+        public void updateTitle(String message) {
+        }
+
+        @Override
+        public void errorMessage(String message) {
+            logMessage("ERROR: " + message);
+        }
+
+        @Override
+        public void programmingDone() {
+        }
+
+        private final Deque<String> lines = new ArrayDeque<>();
+    }
+
+    private final String portName;
+    private final int baudRate;
+    private final Setup setup;
+    private final Thread thread;
+    private final LinkedBlockingDeque<FlashJob> queue = new LinkedBlockingDeque<>();
+    private final SessionLog sessionLog = new SessionLog();
+    /* Queued to open the port without programming */
+    private final FlashJob openRequest;
+    private Transport transport;
+    private MimasV2ConfigDownloader downloader;
+    private State state = State.IDLE;
+    private FlashJob currentJob;
+    private volatile int flashId;
+    private volatile int jobsSucceeded;
+    private volatile int jobsFailed;
+    private volatile int opens;
+    private volatile long openNanos;
+    private volatile long detectNanos;
+    private volatile long calibrateNanos;
+
+    private static final int MAX_LOG_LINES = 20;
+}
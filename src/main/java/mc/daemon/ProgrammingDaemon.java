@@ -0,0 +1,395 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.daemon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import mc.SerialPortRegistry;
+import mc.sim.MimasV2Simulator;
+
+/**
+ * Long running programming service.  Serial ports stay open with their boards
+ * detected between jobs, so the port open, link calibration and detection are
+ * paid once per port instead of once per image.  Jobs are submitted over HTTP
+ * on the loopback interface and queued per port:
+ *
+ *   POST   /jobs?port=P&file=F   submit a job (and verify=B, differential=B)
+ *   GET    /jobs                 all the jobs
+ *   GET    /jobs/ID?wait=S       a job with its log, waiting up to S seconds for it to end
+ *   DELETE /jobs/ID              cancel a queued job
+ *   GET    /status               ports, queue depths and job counts
+ *
+ * Jobs for a port the system doesn't have are refused.  The session of a port
+ * that goes away is dropped once it has no job left.
+ *
+ * @author ideras
+ */
+public class ProgrammingDaemon {
+
+    public ProgrammingDaemon(int listenPort, int baudRate, PortSession.Setup setup) {
+        this(listenPort, baudRate, setup, SerialPortRegistry.getDefault());
+    }
+
+    public ProgrammingDaemon(int listenPort, int baudRate, PortSession.Setup setup, SerialPortRegistry registry) {
+        this.listenPort = listenPort;
+        this.baudRate = baudRate;
+        this.setup = setup;
+        this.registry = registry;
+
+        // The session of a port that went away is dropped once it has nothing to do
+        registry.addListener(new SerialPortRegistry.PortListener() {
+            @Override
+            public void portAdded(String portName) {
+            }
+
+            @Override
+            public void portRemoved(String portName) {
+                removeIdleSession(portName);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/status", this::handleStatus);
+        // A client waiting for its job must not hold up the others
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "daemon-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        startNanos = System.nanoTime();
+    }
+
+    public boolean isVerifyFlash() {
+        return verifyFlash;
+    }
+
+    /*
+     * Whether the jobs that don't say otherwise verify the flash
+     */
+    public void setVerifyFlash(boolean verifyFlash) {
+        this.verifyFlash = verifyFlash;
+    }
+
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    public void setDifferential(boolean differential) {
+        this.differential = differential;
+    }
+
+    public int getListenPort() {
+        return (server != null)? server.getAddress().getPort() : listenPort;
+    }
+
+    /*
+     * Opens a port and detects its board ahead of the first job
+     */
+    public void openPort(String portName) {
+        getSession(portName).open();
+    }
+
+    public FlashJob submit(String portName, String fileName, boolean verifyFlash, boolean differential) {
+        FlashJob job = new FlashJob(nextJobId.incrementAndGet(), portName, fileName, verifyFlash, differential);
+
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            forgetOldJobs();
+        }
+        // Added under the map lock, so an idle session being removed doesn't take the job with it
+        sessions.compute(portName, (name, session) -> {
+            if (session == null) {
+                session = newSession(name);
+            }
+            session.submit(job);
+            return session;
+        });
+        return job;
+    }
+
+    /*
+     * True for the ports of the system, simulated boards and the ports that
+     * already have a session
+     */
+    public boolean isKnownPort(String portName) {
+        return MimasV2Simulator.isSimulatorName(portName) || sessions.containsKey(portName)
+               || registry.getPorts().contains(portName);
+    }
+
+    public FlashJob getJob(long id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public boolean cancel(FlashJob job) {
+        PortSession session = sessions.get(job.getPortName());
+        return session != null && session.cancel(job);
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        for (PortSession session : sessions.values()) {
+            session.close();
+        }
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private PortSession getSession(String portName) {
+        return sessions.computeIfAbsent(portName, this::newSession);
+    }
+
+    private PortSession newSession(String portName) {
+        PortSession session = new PortSession(portName, baudRate, setup);
+        session.start();
+        return session;
+    }
+
+    private void removeIdleSession(String portName) {
+        sessions.computeIfPresent(portName, (name, session) -> {
+            if (!session.isIdle()) {
+                return session;
+            }
+            session.close();
+            return null;
+        });
+    }
+
+    private void forgetOldJobs() {
+        int finished = 0;
+        for (FlashJob job : jobs.values()) {
+            if (job.getState().isFinished()) {
+                finished++;
+            }
+        }
+        Iterator<FlashJob> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+            if (it.next().getState().isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    private List<FlashJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("GET")) {
+                    JsonBuilder json = new JsonBuilder().beginArray();
+                    for (FlashJob job : getJobs()) {
+                        job.toJson(json, false);
+                    }
+                    send(exchange, HTTP_OK, json.endArray());
+                } else if (method.equals("POST")) {
+                    submitJob(exchange, query);
+                } else {
+                    sendError(exchange, HTTP_BAD_METHOD, "Method not allowed: " + method);
+                }
+                return;
+            }
+
+            FlashJob job;
+            try {
+                job = getJob(Long.parseLong(path.substring("/jobs/".length())));
+            } catch (NumberFormatException ex) {
+                job = null;
+            }
+            if (job == null) {
+                sendError(exchange, HTTP_NOT_FOUND, "No such job: " + path);
+            } else if (method.equals("GET")) {
+                if (query.containsKey("wait")) {
+                    job.await((long) (Double.parseDouble(query.get("wait")) * 1000));
+                }
+                JsonBuilder json = new JsonBuilder();
+                job.toJson(json, true);
+                send(exchange, HTTP_OK, json);
+            } else if (method.equals("DELETE")) {
+                if (cancel(job)) {
+                    JsonBuilder json = new JsonBuilder();
+                    job.toJson(json, false);
+                    send(exchange, HTTP_OK, json);
+                } else {
+                    sendError(exchange, HTTP_CONFLICT, "Job " + job.getId() + " is " + job.getState().name().toLowerCase(Locale.ROOT));
+                }
+            } else {
+                sendError(exchange, HTTP_BAD_METHOD, "Method not allowed: " + method);
+            }
+        } catch (NumberFormatException ex) {
+            sendError(exchange, HTTP_BAD_REQUEST, "Invalid number: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, HTTP_UNAVAILABLE, "Interrupted");
+        }
+    }
+
+    private void submitJob(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String portName = query.get("port");
+        String fileName = query.get("file");
+
+        if (portName == null || fileName == null) {
+            sendError(exchange, HTTP_BAD_REQUEST, "The port and file parameters are required");
+            return;
+        }
+        if (!isKnownPort(portName)) {
+            sendError(exchange, HTTP_NOT_FOUND, "No such serial port: " + portName);
+            return;
+        }
+        // The file is read by the daemon, relative paths are meaningless to the client
+        File file = new File(fileName).getAbsoluteFile();
+        if (!file.isFile()) {
+            sendError(exchange, HTTP_BAD_REQUEST, "Cannot read programming file " + file);
+            return;
+        }
+
+        FlashJob job = submit(portName, file.getPath(), getFlag(query, "verify", verifyFlash),
+                              getFlag(query, "differential", differential));
+        JsonBuilder json = new JsonBuilder();
+        job.toJson(json, false);
+        send(exchange, HTTP_ACCEPTED, json);
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        Map<FlashJob.State, Integer> counts = new LinkedHashMap<>();
+        for (FlashJob.State state : FlashJob.State.values()) {
+            counts.put(state, 0);
+        }
+        for (FlashJob job : getJobs()) {
+            counts.merge(job.getState(), 1, Integer::sum);
+        }
+
+        JsonBuilder json = new JsonBuilder().beginObject();
+        json.seconds("uptimeSeconds", System.nanoTime() - startNanos);
+        json.name("jobs").beginObject();
+        for (Map.Entry<FlashJob.State, Integer> entry : counts.entrySet()) {
+            json.field(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        json.endObject();
+        json.name("ports").beginArray();
+        for (PortSession session : sessions.values()) {
+            session.toJson(json);
+        }
+        json.endArray();
+        send(exchange, HTTP_OK, json.endObject());
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = (eq >= 0)? pair.substring(0, eq) : pair;
+            String value = (eq >= 0)? pair.substring(eq + 1) : "";
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static boolean getFlag(Map<String, String> query, String name, boolean defaultValue) {
+        String value = query.get(name);
+        return (value != null)? Boolean.parseBoolean(value) || value.equals("1") : defaultValue;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, new JsonBuilder().beginObject().field("error", message).endObject());
+    }
+
+    private static void send(HttpExchange exchange, int status, JsonBuilder json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private final int listenPort;
+    private final int baudRate;
+    private final PortSession.Setup setup;
+    private final SerialPortRegistry registry;
+    private boolean verifyFlash;
+    private boolean differential;
+    private HttpServer server;
+    private long startNanos;
+    private final Map<String, PortSession> sessions = new ConcurrentSkipListMap<>();
+    private final Map<Long, FlashJob> jobs = new LinkedHashMap<>();
+    private final AtomicLong nextJobId = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public static final int DEFAULT_PORT = 8642;
+    public static final int MAX_FINISHED_JOBS = 1000;
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_ACCEPTED = 202;
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_BAD_METHOD = 405;
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_UNAVAILABLE = 503;
+}
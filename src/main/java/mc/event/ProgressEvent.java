@@ -0,0 +1,122 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.event;
+
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Immutable progress event of a programming session, one per call of the
+ * ProgrammingProgressListener methods.
+ *
+ * @author ideras
+ */
+public final class ProgressEvent {
+
+    public enum Type {
+        INIT_PROGRESS, PROGRESS, LOG, TITLE, ERROR, DONE
+    }
+
+    public ProgressEvent(Type type, String source, int value, String message) {
+        this.type = type;
+        this.source = source;
+        this.value = value;
+        this.message = message;
+        this.timeNanos = System.nanoTime();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /*
+     * Board the event comes from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /*
+     * Maximum of INIT_PROGRESS and value of PROGRESS events
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /*
+     * Message of LOG, TITLE and ERROR events
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /*
+     * System.nanoTime() when the event was published
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    /*
+     * Calls the listener method the event stands for
+     */
+    public void dispatch(ProgrammingProgressListener listener) {
+        switch (type) {
+            case INIT_PROGRESS:
+                listener.initProgress(value);
+                break;
+            case PROGRESS:
+                listener.updateProgress(value);
+                break;
+            case LOG:
+                listener.logMessage(message);
+                break;
+            case TITLE:
+                listener.updateTitle(message);
+                break;
+            case ERROR:
+                listener.errorMessage(message);
+                break;
+            case DONE:
+                listener.programmingDone();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + source + "] " + type + ((message != null)? " " + message : " " + value);
+    }
+
+    private final Type type;
+    private final String source;
+    private final int value;
+    private final String message;
+    private final long timeNanos;
+}
@@ -0,0 +1,181 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.event;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import mc.gui.ProgrammingProgressListener;
+
+/**
+ * Publishes the progress of a programming session as ProgressEvents.  The
+ * downloader reports to the bus as its listener; every call becomes an event
+ * added to the lock-free queue of each subscription, so the programming
+ * thread never runs consumer code or waits for it.  Each consumer (window,
+ * console, metrics) drains its own subscription at its own pace.
+ *
+ * @author ideras
+ */
+public class ProgressEventBus implements ProgrammingProgressListener {
+
+    public ProgressEventBus(String source) {
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Subscription subscribe() {
+        Subscription subscription = new Subscription();
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /*
+     * Delivers the events to a listener on the given executor, which must run
+     * its tasks one at a time (the EDT, a single thread executor)
+     */
+    public Subscription subscribe(ProgrammingProgressListener listener, Executor executor) {
+        Subscription subscription = subscribe();
+        subscription.setNotifier(() -> executor.execute(() -> subscription.drainTo(listener)));
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    public void publish(ProgressEvent event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    @Override
+    public void initProgress(int maxValue) {
+        publish(new ProgressEvent(ProgressEvent.Type.INIT_PROGRESS, source, maxValue, null));
+    }
+
+    @Override
+    public void updateProgress(int value) {
+        publish(new ProgressEvent(ProgressEvent.Type.PROGRESS, source, value, null));
+    }
+
+    @Override
+    public void logMessage(String message) {
+        publish(new ProgressEvent(ProgressEvent.Type.LOG, source, 0, message));
+    }
+
+    @Override
+    public void updateTitle(String message) {
+        publish(new ProgressEvent(ProgressEvent.Type.TITLE, source, 0, message));
+    }
+
+    @Override
+    public void errorMessage(String message) {
+        publish(new ProgressEvent(ProgressEvent.Type.ERROR, source, 0, message));
+    }
+
+    @Override
+    public void programmingDone() {
+        publish(new ProgressEvent(ProgressEvent.Type.DONE, source, 0, null));
+    }
+
+    /**
+     * Queue of the events for one consumer
+     */
+    public static class Subscription {
+
+        private Subscription() {
+        }
+
+        /*
+         * Sets the code run, on the publishing thread, when events arrive and
+         * the consumer hasn't drained the queue since the last notification.
+         * It should only hand the work over to the consumer.
+         */
+        public void setNotifier(Runnable notifier) {
+            this.notifier = notifier;
+            if (!queue.isEmpty()) {
+                notifyConsumer();
+            }
+        }
+
+        public ProgressEvent poll() {
+            return queue.poll();
+        }
+
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        /*
+         * Passes all the queued events to the handler
+         * @return the number of events
+         */
+        public int drain(Consumer<ProgressEvent> handler) {
+            // Events added from now on notify again
+            notified.set(false);
+
+            int count = 0;
+            ProgressEvent event;
+            while ((event = queue.poll()) != null) {
+                handler.accept(event);
+                count++;
+            }
+            return count;
+        }
+
+        public int drainTo(ProgrammingProgressListener listener) {
+            return drain(event -> event.dispatch(listener));
+        }
+
+        void offer(ProgressEvent event) {
+            queue.add(event);
+            notifyConsumer();
+        }
+
+        private void notifyConsumer() {
+            Runnable current = notifier;
+            if (current != null && !notified.getAndSet(true)) {
+                current.run();
+            }
+        }
+
+        private final ConcurrentLinkedQueue<ProgressEvent> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean notified = new AtomicBoolean();
+        private volatile Runnable notifier;
+    }
+
+    private final String source;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+}
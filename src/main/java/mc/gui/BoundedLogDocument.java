@@ -0,0 +1,70 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.gui;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+
+/**
+ * Text document that keeps only the last maxLines lines, dropping the oldest
+ * ones as new lines are appended.  Appending costs the same however long the
+ * session log gets.
+ *
+ * @author ideras
+ */
+public class BoundedLogDocument extends PlainDocument {
+
+    public BoundedLogDocument(int maxLines) {
+        this.maxLines = maxLines;
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    /*
+     * Appends text as one or more lines.  Must be called on the EDT.
+     */
+    public void appendLines(String text) {
+        try {
+            insertString(getLength(), text + "\n", null);
+
+            // The element after the last new line is empty
+            Element root = getDefaultRootElement();
+            int excess = root.getElementCount() - 1 - maxLines;
+            if (excess > 0) {
+                remove(0, root.getElement(excess - 1).getEndOffset());
+            }
+        } catch (BadLocationException ex) {
+            // Offsets come from the document itself
+        }
+    }
+
+    private final int maxLines;
+}
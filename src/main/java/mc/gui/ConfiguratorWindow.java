@@ -28,16 +28,27 @@
 package mc.gui;
 
 import java.awt.Rectangle;
-import purejavacomm.*;
 import java.io.File;
-import java.util.Enumeration;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.prefs.Preferences;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import mc.BoardDiscovery;
+import mc.ConfiguratorException;
+import mc.LinkCalibrator;
+import mc.LinkProfile;
 import mc.MimasV2ConfigDownloader;
-import purejavacomm.SerialPort;
+import mc.SerialPortRegistry;
+import mc.SerialPorts;
+import mc.Transport;
+import mc.event.ProgressEventBus;
 
 /**
  *
@@ -51,11 +62,16 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
     public ConfiguratorWindow() {
         initComponents();
         
+        consoleDocument = new BoundedLogDocument(MAX_CONSOLE_LINES);
+        txtConsole.setDocument(consoleDocument);
+        progressConsumer = new EdtProgressConsumer(this, PROGRESS_FRAME_RATE, MAX_CONSOLE_LINES);
+        
         fileChooser = new JFileChooser();
-        fileFilter = new FileNameExtensionFilter("FPGA Programming file (*.bit, *.bin)", new String[]{"bit", "bin"});
+        fileFilter = new FileNameExtensionFilter("FPGA Programming file (*.bit, *.bin, *.layout)", new String[]{"bit", "bin", "layout"});
 
         configDownloader = null;
-        loadSerialPortList();
+        boardDiscovery.getRegistry().addListener(new PortListUpdater());
+        discoverBoards(null);
         
         String sParam = prefs.get("Programming File", "");
         txtProgFile.setText(sParam);
@@ -73,21 +89,69 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
         setBounds(bounds);
     }
     
-    private void loadSerialPortList() {
-        
-        cmbSerialPorts.removeAllItems();
-
-        Enumeration ports = CommPortIdentifier.getPortIdentifiers();
-        while (ports.hasMoreElements()) {
-            CommPortIdentifier port = (CommPortIdentifier) ports.nextElement();
-            switch (port.getPortType()) {
-                case CommPortIdentifier.PORT_SERIAL:
-                    cmbSerialPorts.addItem(port.getName());
-                    break;
-                default:
-                    break;
+    /*
+     * Probes the given ports in the background, all the registered ones if
+     * null, and updates the port list.  The first port where a Mimas V2 is
+     * found gets selected.
+     */
+    private void discoverBoards(List<String> ports) {
+        new SwingWorker<List<BoardDiscovery.BoardInfo>, Void>() {
+            @Override
+            protected List<BoardDiscovery.BoardInfo> doInBackground() {
+                return (ports == null)? boardDiscovery.discover() : boardDiscovery.discover(ports);
+            }
+
+            @Override
+            protected void done() {
+                List<BoardDiscovery.BoardInfo> boards;
+                try {
+                    boards = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    return;
+                }
+
+                String boardPort = null;
+                for (BoardDiscovery.BoardInfo info : boards) {
+                    // The port may have been removed while it was probed
+                    if (boardDiscovery.getRegistry().contains(info.getPortName())) {
+                        addPortItem(info.getPortName());
+                        if (info.isMimasV2() && boardPort == null) {
+                            boardPort = info.getPortName();
+                        }
+                    }
+                }
+
+                if (boardPort != null && btnProgram.isEnabled()) {
+                    cmbSerialPorts.setSelectedItem(boardPort);
+                    lblMessage.setText("Mimas V2 found on " + boardPort);
+                }
+            }
+        }.execute();
+    }
+
+    private void addPortItem(String portName) {
+        for (int i = 0; i < cmbSerialPorts.getItemCount(); i++) {
+            if (portName.equals(cmbSerialPorts.getItemAt(i))) {
+                return;
             }
         }
+        cmbSerialPorts.addItem(portName);
+    }
+
+    /*
+     * SerialPortRegistry listener, keeps the port list in sync with the system
+     */
+    private class PortListUpdater implements SerialPortRegistry.PortListener {
+
+        @Override
+        public void portAdded(String portName) {
+            SwingUtilities.invokeLater(() -> discoverBoards(Collections.singletonList(portName)));
+        }
+
+        @Override
+        public void portRemoved(String portName) {
+            SwingUtilities.invokeLater(() -> cmbSerialPorts.removeItem(portName));
+        }
     }
 
     File openFile(String title) {
@@ -127,25 +191,24 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
     }
     
     /* 
-     * Programming Progress Listener methods
+     * Programming Progress Listener methods.  The programming thread publishes
+     * to the session's event bus, progressConsumer calls these on the EDT.
      */
     @Override
     public void initProgress(int maxValue) {
         prgProgramming.setMaximum(maxValue);
         prgProgramming.setValue(0);
-        prgProgramming.repaint();
     }
 
     @Override
     public void updateProgress(int value) {
         prgProgramming.setValue(value);
-        prgProgramming.repaint();
     }
     
     @Override
     public void logMessage(String message) {
-        String theMessage = txtConsole.getText() + message + "\n";
-        txtConsole.setText(theMessage);
+        consoleDocument.appendLines(message);
+        txtConsole.setCaretPosition(consoleDocument.getLength());
     }
     
     @Override
@@ -155,13 +218,16 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
     
     @Override
     public void updateTitle(String message) {
+        // progressConsumer logs the title with the other messages
         lblMessage.setText(message);
-        logMessage(message);
     }
     
     @Override
     public void programmingDone() {
-        serialPort.close();
+        progressConsumer.detach();
+        transport.close();
+        transport = null;
+        configDownloader = null;
         
         btnProgram.setEnabled(true);
         chkVerifyFlash.setEnabled(true);
@@ -374,46 +440,64 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
             return;
         }
         
-        CommPortIdentifier serialPortIdent;
-        try {
-            serialPortIdent = CommPortIdentifier.getPortIdentifier(serialPortName);
-        } catch (NoSuchPortException ex) {
-            JOptionPane.showMessageDialog(this, "The port doesn't exists.  Perhaps you disconnected the board from the port.", "Error opening port", JOptionPane.OK_OPTION);
-            return;
-        }
-        
-        try {                        
-            serialPort = (SerialPort) serialPortIdent.open("MimasV2ConfigDownloader", 2000);
-            serialPort.enableReceiveTimeout(2000);
-            serialPort.setSerialPortParams(115200, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-            
-        } catch (PortInUseException ex) {
-            JOptionPane.showMessageDialog(this, "Error opening port perhaps you don't permission to use the port or\nthe port is already in use.", "Error", JOptionPane.OK_OPTION);           
-            return;
-        } catch (UnsupportedCommOperationException ex) {
-            JOptionPane.showMessageDialog(this, "Unsupported operation", "Error opening port", JOptionPane.OK_OPTION);
-            serialPort.close();
-            return;
-        }
-        
         txtConsole.setText("");
-        configDownloader = new MimasV2ConfigDownloader(serialPort, filename, this, chkVerifyFlash.isSelected());
-        
-        if (!configDownloader.boardIsMimasV2()) {
-            JOptionPane.showMessageDialog(this, "Cannot detect a Mimas V2 board connected to the port.\nPlease check that the board is in programming mode.");
-            configDownloader = null;
-            serialPort.close();
-            return;
-        }
-        
+        lblMessage.setText("Detecting board...");
         btnProgram.setEnabled(false);
         chkVerifyFlash.setEnabled(false);
-        Thread t = new Thread(configDownloader);
-        t.start();
+
+        ProgressEventBus eventBus = new ProgressEventBus(serialPortName);
+        progressConsumer.attach(eventBus);
+        boolean verifyFlash = chkVerifyFlash.isSelected();
+        int baudRate = Integer.parseInt((String) cmbSpeed.getSelectedItem());
+
+        // Opening the port and detecting the board can take seconds, keep them off the EDT
+        new SwingWorker<MimasV2ConfigDownloader, Void>() {
+            @Override
+            protected MimasV2ConfigDownloader doInBackground() throws ConfiguratorException {
+                Transport newTransport = SerialPorts.openTransport(serialPortName, baudRate);
+                MimasV2ConfigDownloader downloader = new MimasV2ConfigDownloader(newTransport, filename, eventBus, verifyFlash);
+
+                if (!downloader.boardIsMimasV2()) {
+                    newTransport.close();
+                    throw new ConfiguratorException("Cannot detect a Mimas V2 board connected to the port.\nPlease check that the board is in programming mode.");
+                }
+
+                try {
+                    LinkProfile profile = LinkCalibrator.getProfile(downloader, serialPortName, baudRate, false);
+                    profile.applyTo(downloader);
+                    eventBus.logMessage("Link: " + profile);
+                } catch (ConfiguratorException | IOException ex) {
+                    eventBus.logMessage("Link calibration failed, using the default settings: " + ex.getMessage());
+                }
+                return downloader;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    configDownloader = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = (ex.getCause() != null)? ex.getCause() : ex;
+                    progressConsumer.detach();
+                    lblMessage.setText("");
+                    JOptionPane.showMessageDialog(ConfiguratorWindow.this, cause.getMessage(), "Error", JOptionPane.OK_OPTION);
+                    btnProgram.setEnabled(true);
+                    chkVerifyFlash.setEnabled(true);
+                    return;
+                }
+                transport = configDownloader.getTransport();
+
+                Thread t = new Thread(configDownloader);
+                t.start();
+            }
+        }.execute();
     }//GEN-LAST:event_btnProgramActionPerformed
 
     private void btnRefreshActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnRefreshActionPerformed
-        loadSerialPortList();
+        // The board may have been switched to programming mode since it was probed
+        boardDiscovery.invalidateAll();
+        boardDiscovery.getRegistry().rescan();
+        discoverBoards(null);
     }//GEN-LAST:event_btnRefreshActionPerformed
 
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
@@ -422,10 +506,16 @@ public class ConfiguratorWindow extends javax.swing.JFrame implements Programmin
 
     private final JFileChooser fileChooser;
     private final FileFilter fileFilter;
-    private SerialPort serialPort;
+    private Transport transport;
+    private final BoardDiscovery boardDiscovery = new BoardDiscovery();
     private MimasV2ConfigDownloader configDownloader;
+    private final BoundedLogDocument consoleDocument;
+    private final EdtProgressConsumer progressConsumer;
     Preferences prefs = Preferences.userNodeForPackage(ConfiguratorWindow.class);
 
+    private static final int MAX_CONSOLE_LINES = 1000;
+    private static final int PROGRESS_FRAME_RATE = 30;
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton btnBrowse;
     private javax.swing.JButton btnClose;
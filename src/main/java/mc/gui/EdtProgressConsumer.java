@@ -0,0 +1,162 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.gui;
+
+import java.util.ArrayDeque;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import mc.event.ProgressEvent;
+import mc.event.ProgressEventBus;
+
+/**
+ * Drains the progress events of a session on the EDT and forwards them to a
+ * Swing listener.  Progress and title updates are coalesced and log lines are
+ * batched, all of them delivered at most framesPerSecond times per second, so
+ * the window never falls behind the programming thread.  Errors and the end of
+ * the session are delivered in order, after everything published before them.
+ *
+ * @author ideras
+ */
+public class EdtProgressConsumer {
+
+    public EdtProgressConsumer(ProgrammingProgressListener target, int framesPerSecond, int maxPendingLines) {
+        this.target = target;
+        this.frameNanos = 1000000000L / framesPerSecond;
+        this.maxPendingLines = maxPendingLines;
+    }
+
+    /*
+     * Starts consuming the events of the bus, replacing the previous one
+     */
+    public void attach(ProgressEventBus bus) {
+        detach();
+
+        ProgressEventBus.Subscription newSubscription = bus.subscribe();
+        this.bus = bus;
+        this.subscription = newSubscription;
+        newSubscription.setNotifier(() -> SwingUtilities.invokeLater(() -> scheduleFrame(newSubscription)));
+    }
+
+    public void detach() {
+        if (bus != null) {
+            bus.unsubscribe(subscription);
+            bus = null;
+            subscription = null;
+        }
+    }
+
+    /*
+     * Runs on the EDT, once per notification of the subscription
+     */
+    private void scheduleFrame(ProgressEventBus.Subscription source) {
+        long delayMs = (lastFrameNanos + frameNanos - System.nanoTime()) / 1000000;
+
+        if (delayMs <= 0) {
+            flush(source);
+        } else {
+            Timer timer = new Timer((int) delayMs, event -> flush(source));
+            timer.setRepeats(false);
+            timer.start();
+        }
+    }
+
+    /*
+     * Delivers all the queued events to the target.  Runs on the EDT.
+     */
+    private void flush(ProgressEventBus.Subscription source) {
+        lastFrameNanos = System.nanoTime();
+        source.drain(this::apply);
+        deliverPending();
+    }
+
+    private void apply(ProgressEvent event) {
+        switch (event.getType()) {
+            case INIT_PROGRESS:
+                progressMax = event.getValue();
+                progressValue = 0;
+                break;
+            case PROGRESS:
+                progressValue = event.getValue();
+                break;
+            case TITLE:
+                title = event.getMessage();
+                addLine(event.getMessage());
+                break;
+            case LOG:
+                addLine(event.getMessage());
+                break;
+            default:
+                deliverPending();
+                event.dispatch(target);
+                break;
+        }
+    }
+
+    private void addLine(String line) {
+        // The window keeps the last lines only, older pending ones would be dropped anyway
+        if (pendingLines.size() == maxPendingLines) {
+            pendingLines.poll();
+        }
+        pendingLines.add(line);
+    }
+
+    private void deliverPending() {
+        if (progressMax >= 0) {
+            target.initProgress(progressMax);
+            progressMax = -1;
+        }
+        if (progressValue >= 0) {
+            target.updateProgress(progressValue);
+            progressValue = -1;
+        }
+
+        if (!pendingLines.isEmpty()) {
+            target.logMessage(String.join("\n", pendingLines));
+            pendingLines.clear();
+        }
+
+        if (title != null && !title.equals(shownTitle)) {
+            shownTitle = title;
+            target.updateTitle(title);
+        }
+    }
+
+    private final ProgrammingProgressListener target;
+    private final long frameNanos;
+    private final int maxPendingLines;
+
+    /* Only used on the EDT */
+    private ProgressEventBus bus;
+    private ProgressEventBus.Subscription subscription;
+    private final ArrayDeque<String> pendingLines = new ArrayDeque<>();
+    private int progressMax = -1;
+    private int progressValue = -1;
+    private String title;
+    private String shownTitle;
+    private long lastFrameNanos;
+}
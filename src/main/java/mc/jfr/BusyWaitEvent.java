@@ -0,0 +1,83 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Wait for a program or erase operation of the flash to complete
+ *
+ * @author ideras
+ */
+@Name("mc.BusyWait")
+@Label("Flash Busy Wait")
+@Description("Polling of the flash status register until a program or erase completes")
+@Category({"Mimas V2", "Flash"})
+@StackTrace(false)
+public class BusyWaitEvent extends Event {
+
+    @Label("Board")
+    public String board;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Status Polls")
+    public long polls;
+
+    /*
+     * Starts a busy wait event, or returns null when the event isn't recorded so
+     * nothing is allocated for it
+     */
+    public static BusyWaitEvent start() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        BusyWaitEvent event = new BusyWaitEvent();
+        event.begin();
+        return event;
+    }
+
+    public void complete(String board, String operation, long polls) {
+        end();
+        if (shouldCommit()) {
+            this.board = board;
+            this.operation = operation;
+            this.polls = polls;
+            commit();
+        }
+    }
+
+    /* Only asked whether the event type is enabled, never committed */
+    private static final BusyWaitEvent PROBE = new BusyWaitEvent();
+}
@@ -0,0 +1,227 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.sim;
+
+import java.util.Arrays;
+import static mc.MimasV2ConfigDownloader.*;
+
+/**
+ * Model of a Micron M25P16 SPI flash: 2 MB of memory, the status register
+ * and the instructions used by the configurator.  Program and erase
+ * operations take effect immediately but keep the device busy for their
+ * typical time, so the write in progress bit behaves as on the real part.
+ *
+ * @author ideras
+ */
+public class M25P16Flash {
+
+    public M25P16Flash() {
+        Arrays.fill(memory, (byte) 0xff);
+    }
+
+    /*
+     * Chip select asserted, a new instruction starts
+     */
+    public synchronized void select() {
+        selected = true;
+        opcode = -1;
+        byteCount = 0;
+        address = 0;
+        Arrays.fill(pageLatch, (byte) 0xff);
+    }
+
+    /*
+     * Chip select de-asserted, program and erase instructions are executed
+     */
+    public synchronized void deselect() {
+        if (!selected) {
+            return;
+        }
+        selected = false;
+
+        long now = System.nanoTime();
+        switch (opcode) {
+            case M25P16_WRITE_ENABLE:
+                writeEnabled = true;
+                break;
+            case M25P16_WRITE_DISABLE:
+                writeEnabled = false;
+                break;
+            case M25P16_PAGE_PROGRAM:
+                if (writeEnabled && byteCount > ADDRESS_BYTES) {
+                    int pageStart = address & ~(M25P16_PAGE_SIZE - 1);
+                    for (int i = 0; i < M25P16_PAGE_SIZE; i++) {
+                        memory[pageStart + i] &= pageLatch[i];
+                    }
+                    startOperation(now, pageProgramNanos);
+                    pageProgramCount++;
+                }
+                break;
+            case M25P16_SECTOR_ERASE:
+                if (writeEnabled && byteCount == ADDRESS_BYTES) {
+                    int sectorStart = address & ~(M25P16_SECTOR_SIZE - 1);
+                    Arrays.fill(memory, sectorStart, sectorStart + M25P16_SECTOR_SIZE, (byte) 0xff);
+                    startOperation(now, sectorEraseNanos);
+                    sectorEraseCount++;
+                }
+                break;
+            case M25P16_BULK_ERASE:
+                if (writeEnabled && byteCount == 0) {
+                    Arrays.fill(memory, (byte) 0xff);
+                    startOperation(now, bulkEraseNanos);
+                    bulkEraseCount++;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startOperation(long now, long nanos) {
+        busyUntil = now + nanos;
+        writeEnabled = false;
+    }
+
+    /*
+     * Clocks one byte in and returns the byte clocked out
+     */
+    public synchronized int transfer(int in) {
+        if (!selected) {
+            return 0xff;
+        }
+        in &= 0xff;
+
+        if (opcode < 0) {
+            // While busy only the status register can be read
+            opcode = (isBusy() && in != M25P16_READ_STATUS)? IGNORED : in;
+            return 0xff;
+        }
+
+        int out = 0xff;
+        switch (opcode) {
+            case SPI_FLASH_READ_ID_9F:
+                out = (byteCount < JEDEC_ID.length)? JEDEC_ID[byteCount] : 0;
+                break;
+            case M25P16_READ_STATUS:
+                out = getStatus();
+                break;
+            case M25P16_READ:
+                if (byteCount < ADDRESS_BYTES) {
+                    address = (address << 8) | in;
+                } else {
+                    out = memory[address & (M25P16_FLASH_SIZE - 1)] & 0xff;
+                    address++;
+                }
+                break;
+            case M25P16_PAGE_PROGRAM:
+                if (byteCount < ADDRESS_BYTES) {
+                    address = (address << 8) | in;
+                } else {
+                    // Bytes past the end of the page wrap to its start
+                    pageLatch[(address + byteCount - ADDRESS_BYTES) & (M25P16_PAGE_SIZE - 1)] = (byte) in;
+                }
+                break;
+            case M25P16_SECTOR_ERASE:
+                if (byteCount < ADDRESS_BYTES) {
+                    address = (address << 8) | in;
+                }
+                break;
+            default:
+                break;
+        }
+        byteCount++;
+        return out;
+    }
+
+    public synchronized int getStatus() {
+        return (isBusy()? STATUS_WIP : 0) | (writeEnabled? STATUS_WEL : 0);
+    }
+
+    private boolean isBusy() {
+        return System.nanoTime() - busyUntil < 0;
+    }
+
+    /*
+     * Copies memory contents, regardless of the device state
+     */
+    public synchronized void read(int address, byte[] buffer, int offset, int length) {
+        System.arraycopy(memory, address, buffer, offset, length);
+    }
+
+    public synchronized void write(int address, byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, memory, address, length);
+    }
+
+    public void setPageProgramNanos(long pageProgramNanos) {
+        this.pageProgramNanos = pageProgramNanos;
+    }
+
+    public void setSectorEraseNanos(long sectorEraseNanos) {
+        this.sectorEraseNanos = sectorEraseNanos;
+    }
+
+    public void setBulkEraseNanos(long bulkEraseNanos) {
+        this.bulkEraseNanos = bulkEraseNanos;
+    }
+
+    public synchronized int getPageProgramCount() {
+        return pageProgramCount;
+    }
+
+    public synchronized int getSectorEraseCount() {
+        return sectorEraseCount;
+    }
+
+    public synchronized int getBulkEraseCount() {
+        return bulkEraseCount;
+    }
+
+    private final byte[] memory = new byte[M25P16_FLASH_SIZE];
+    private final byte[] pageLatch = new byte[M25P16_PAGE_SIZE];
+    private boolean selected;
+    private boolean writeEnabled;
+    private int opcode = -1;
+    private int byteCount;
+    private int address;
+    private long busyUntil = System.nanoTime();
+    private int pageProgramCount;
+    private int sectorEraseCount;
+    private int bulkEraseCount;
+
+    /* Typical times of the data sheet */
+    private volatile long pageProgramNanos = 1400000L;
+    private volatile long sectorEraseNanos = 600000000L;
+    private volatile long bulkEraseNanos = 13000000000L;
+
+    public static final int STATUS_WIP = 0x01;
+    public static final int STATUS_WEL = 0x02;
+
+    private static final int[] JEDEC_ID = { 0x20, 0x20, 0x15 };
+    private static final int ADDRESS_BYTES = 3;
+    private static final int IGNORED = 0x100;
+}
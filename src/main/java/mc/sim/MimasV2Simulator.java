@@ -0,0 +1,477 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mc.SerialPorts;
+import mc.Transport;
+import static mc.MimasV2ConfigDownloader.*;
+
+/**
+ * In-process Mimas V2 board: emulates the packet protocol of the PIC18 and
+ * an M25P16 connected to its SPI port.
+ *
+ * Frames written by the host are queued as in the USB endpoint, so writes
+ * block when the PIC falls behind.  The PIC takes frameNanos to handle each
+ * one and every response reaches the host usbLatencyNanos later, in 38 byte
+ * status or buffer packets.
+ *
+ * GET_CHAR, GET_IO_VALUE and GET_ALL_IO_VALUES answer with a buffer packet
+ * laid out as the GETSTRING one.  DONE and INIT_B follow PROGB, as if the FPGA
+ * configured itself right away.  The GETSTRING_ATADDRESS and
+ * PUTSTRING_ATADDRESS frames are not emulated and answered with an error
+ * status: the configurator doesn't send them and their layout isn't known.
+ *
+ * @author ideras
+ */
+public class MimasV2Simulator implements Transport {
+
+    public MimasV2Simulator(String name, M25P16Flash flash) {
+        this.name = name;
+        this.flash = flash;
+
+        // CS and PROGB are pulled up
+        Arrays.fill(ioValues, 1);
+
+        device = new Thread(this::runDevice, "sim-pic18 " + name);
+        device.setDaemon(true);
+        device.start();
+        
+        delivery = new Thread(this::runDelivery, "sim-usb " + name);
+        delivery.setDaemon(true);
+        delivery.start();
+    }
+
+    /*
+     * Opens a simulated board.  The flash of each name is kept for the life of
+     * the process, so later sessions find what earlier ones programmed.
+     */
+    public static MimasV2Simulator open(String name) {
+        M25P16Flash flash;
+        synchronized (FLASHES) {
+            flash = FLASHES.computeIfAbsent(name, key -> new M25P16Flash());
+        }
+        return new MimasV2Simulator(name, flash);
+    }
+
+    public static boolean isSimulatorName(String name) {
+        return name.startsWith(PORT_PREFIX);
+    }
+
+    public M25P16Flash getFlash() {
+        return flash;
+    }
+
+    public void setFrameNanos(long frameNanos) {
+        this.frameNanos = frameNanos;
+    }
+
+    public void setUsbLatencyNanos(long usbLatencyNanos) {
+        this.usbLatencyNanos = usbLatencyNanos;
+    }
+
+    /*
+     * Number of times PROGB was released, each one starts an FPGA configuration
+     */
+    public int getConfigurationCount() {
+        return configurationCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public void setDataListener(Runnable listener) throws IOException {
+        if (dataListener != null) {
+            throw new IOException("The port " + name + " already has a listener");
+        }
+        dataListener = listener;
+    }
+
+    @Override
+    public void removeDataListener() {
+        dataListener = null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        device.interrupt();
+        delivery.interrupt();
+        synchronized (in) {
+            in.notifyAll();
+        }
+    }
+
+    /*
+     * PIC18 firmware: handles the frames one at a time
+     */
+    private void runDevice() {
+        long frameDone = System.nanoTime();
+        try {
+            while (!closed) {
+                byte[] frame = frames.take();
+
+                // Frames are paced against when the previous one was done, so
+                // oversleeping doesn't slow the simulated PIC down
+                long now = System.nanoTime();
+                frameDone = Math.max(frameDone, now) + frameNanos;
+                if (frameDone - now > 0) {
+                    LockSupport.parkNanos(frameDone - now);
+                }
+                frameCount++;
+
+                byte[] response = handleFrame(frame);
+                if (response != null) {
+                    responses.put(new Response(frameDone + usbLatencyNanos, response));
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Closed
+        }
+    }
+
+    /*
+     * USB IN endpoint: hands the responses to the host after the link latency
+     */
+    private void runDelivery() {
+        try {
+            while (!closed) {
+                Response response = responses.take();
+                long delay;
+                while ((delay = response.time - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                in.deliver(response.packet);
+
+                Runnable listener = dataListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Closed
+        }
+    }
+
+    private byte[] handleFrame(byte[] frame) {
+        if (frame[0] != 0x7e) {
+            // The firmware ignores frames without the sync byte
+            return null;
+        }
+        int type = frame[1];
+
+        switch (type) {
+            case CONFIG_OUT_PACKET_SPI_OPEN:
+                spiOpen = true;
+                return status(type, STATUS_OK);
+            case CONFIG_OUT_PACKET_SPI_CLOSE:
+                spiOpen = false;
+                return status(type, STATUS_OK);
+            case CONFIG_OUT_PACKET_SPI_SET_IO_DIR:
+                setIoDirection(frame[3], frame[4]);
+                return status(type, STATUS_OK);
+            case CONFIG_OUT_PACKET_SPI_SET_IO_VALUE:
+                setIoValue(frame[3], frame[4]);
+                return status(type, STATUS_OK);
+            case CONFIG_OUT_PACKET_SPI_PUT_CHAR:
+                transfer(frame[3]);
+                return status(type, STATUS_OK);
+            case CONFIG_OUT_PACKET_SPI_PUTSTRING: {
+                int length = Math.min(frame[3] & 0xff, CDC_DATA_OUT_EP_SIZE - PUTSTRING_DATA_OFFSET);
+                for (int i = 0; i < length; i++) {
+                    transfer(frame[PUTSTRING_DATA_OFFSET + i]);
+                }
+                return status(type, STATUS_OK);
+            }
+            case CONFIG_OUT_PACKET_SPI_GETSTRING: {
+                int length = Math.min(frame[3] & 0xff, READ_BLOCK_SIZE);
+                byte[] packet = packet(CONFIG_IN_PACKET_BUFFER);
+                packet[3] = (byte) length;
+                for (int i = 0; i < length; i++) {
+                    packet[IN_PACKET_DATA_OFFSET + i] = (byte) transfer(0xff);
+                }
+                return packet;
+            }
+            case CONFIG_OUT_PACKET_SPI_GET_CHAR:
+                return buffer(transfer(0xff));
+            case CONFIG_OUT_PACKET_SPI_GET_IO_VALUE:
+                return buffer(getIoValue(frame[3]));
+            case CONFIG_OUT_PACKET_SPI_GET_ALL_IO_VALUES: {
+                int[] values = new int[ioValues.length];
+                for (int io = 0; io < values.length; io++) {
+                    values[io] = getIoValue(io);
+                }
+                return buffer(values);
+            }
+            default:
+                return status(type, STATUS_ERROR);
+        }
+    }
+
+    private void setIoDirection(int io, int direction) {
+        ioDirections[io & 0x7] = direction;
+
+        // CS is pulled up when it isn't driven
+        if (io == CONFIG_IO_PIN_CS && direction == IO_DIRECTION_IN) {
+            flash.deselect();
+        }
+    }
+
+    private void setIoValue(int io, int value) {
+        io &= 0x7;
+        int previous = ioValues[io];
+        ioValues[io] = value;
+
+        if (io == CONFIG_IO_PIN_CS && value != previous) {
+            if (value == 0) {
+                flash.select();
+            } else {
+                flash.deselect();
+            }
+        } else if (io == CONFIG_IO_PIN_PROGB && previous == 0 && value != 0) {
+            configurationCount++;
+        }
+    }
+
+    private int getIoValue(int io) {
+        io &= 0x7;
+        if (io == CONFIG_IO_PIN_DONE || io == CONFIG_IO_PIN_INITB) {
+            // Low while the FPGA is held in reset
+            return (ioValues[CONFIG_IO_PIN_PROGB] != 0)? 1 : 0;
+        }
+        return ioValues[io];
+    }
+
+    private int transfer(int value) {
+        return spiOpen? flash.transfer(value) : 0xff;
+    }
+
+    private static byte[] status(int packetType, int status) {
+        byte[] packet = packet(CONFIG_IN_PACKET_STATUS);
+        packet[3] = (byte) status;
+        packet[4] = (byte) packetType;
+        return packet;
+    }
+
+    private static byte[] buffer(int... values) {
+        byte[] packet = packet(CONFIG_IN_PACKET_BUFFER);
+        packet[3] = (byte) values.length;
+        for (int i = 0; i < values.length; i++) {
+            packet[IN_PACKET_DATA_OFFSET + i] = (byte) values[i];
+        }
+        return packet;
+    }
+
+    private static byte[] packet(int packetType) {
+        byte[] packet = new byte[CDC_DATA_IN_EP_SIZE];
+        packet[0] = 0x7e;
+        packet[1] = (byte) packetType;
+        packet[2] = 0x01;
+        return packet;
+    }
+
+    private static class Response {
+        Response(long time, byte[] packet) {
+            this.time = time;
+            this.packet = packet;
+        }
+
+        final long time;
+        final byte[] packet;
+    }
+
+    /*
+     * Host side of the OUT endpoint: splits the written bytes in frames
+     */
+    private class FrameOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (closed) {
+                    throw new IOException("The port " + name + " is closed");
+                }
+                int count = Math.min(length, CDC_DATA_OUT_EP_SIZE - framePos);
+
+                System.arraycopy(data, offset, frame, framePos, count);
+                framePos += count;
+                offset += count;
+                length -= count;
+
+                if (framePos == CDC_DATA_OUT_EP_SIZE) {
+                    try {
+                        // Blocks while the PIC is busy, like a NAKed USB transfer
+                        while (!frames.offer(frame, 10, TimeUnit.MILLISECONDS)) {
+                            if (closed) {
+                                throw new IOException("The port " + name + " is closed");
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    frame = new byte[CDC_DATA_OUT_EP_SIZE];
+                    framePos = 0;
+                }
+            }
+        }
+
+        private byte[] frame = new byte[CDC_DATA_OUT_EP_SIZE];
+        private int framePos;
+    }
+
+    /*
+     * Host side of the IN endpoint.  Reads wait for data up to the receive
+     * timeout of a serial port and then return 0.
+     */
+    private class PacketInputStream extends InputStream {
+        synchronized void deliver(byte[] packet) {
+            if (count + packet.length > buffer.length) {
+                byte[] larger = new byte[Math.max(buffer.length * 2, count + packet.length)];
+                System.arraycopy(buffer, head, larger, 0, count);
+                buffer = larger;
+                head = 0;
+            } else if (head + count + packet.length > buffer.length) {
+                System.arraycopy(buffer, head, buffer, 0, count);
+                head = 0;
+            }
+            System.arraycopy(packet, 0, buffer, head + count, packet.length);
+            count += packet.length;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == 1)? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] data, int offset, int length) throws IOException {
+            long deadline = System.nanoTime() + SerialPorts.RECEIVE_TIMEOUT * 1000000L;
+            long remaining;
+
+            while (count == 0 && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = Math.min(length, count);
+            System.arraycopy(buffer, head, data, offset, n);
+            head += n;
+            count -= n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            int skipped = (int) Math.min(n, count);
+            head += skipped;
+            count -= skipped;
+            return skipped;
+        }
+
+        private byte[] buffer = new byte[64 * CDC_DATA_IN_EP_SIZE];
+        private int head;
+        private int count;
+    }
+
+    private final String name;
+    private final M25P16Flash flash;
+    private final Thread device;
+    private final Thread delivery;
+    private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(OUT_QUEUE_FRAMES);
+    private final BlockingQueue<Response> responses = new LinkedBlockingQueue<>();
+    private final FrameOutputStream out = new FrameOutputStream();
+    private final PacketInputStream in = new PacketInputStream();
+    private final int[] ioDirections = new int[8];
+    private final int[] ioValues = new int[8];
+    private volatile Runnable dataListener;
+    private volatile boolean closed;
+    private volatile long frameNanos = DEFAULT_FRAME_NANOS;
+    private volatile long usbLatencyNanos = DEFAULT_USB_LATENCY_NANOS;
+    private volatile int configurationCount;
+    private volatile long frameCount;
+    private boolean spiOpen;
+
+    private static final Map<String, M25P16Flash> FLASHES = new HashMap<>();
+
+    public static final String PORT_PREFIX = "sim:";
+
+    // Time the PIC takes to handle a frame and the round trip of a full speed USB link
+    public static final long DEFAULT_FRAME_NANOS = 100000L;
+    public static final long DEFAULT_USB_LATENCY_NANOS = 1000000L;
+
+    private static final int OUT_QUEUE_FRAMES = 8;
+    private static final int PUTSTRING_DATA_OFFSET = 6;
+    private static final int STATUS_OK = 0;
+    private static final int STATUS_ERROR = 1;
+}
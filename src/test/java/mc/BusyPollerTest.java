@@ -0,0 +1,128 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import mc.sim.MimasV2Simulator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The completion time estimates of the BusyPoller must follow the device, in
+ * both directions, and never leave the datasheet range.
+ *
+ * @author ideras
+ */
+public class BusyPollerTest {
+
+    @Test
+    public void estimateConvergesToTheOperationTime() throws Exception {
+        BusyPoller poller = new BusyPoller();
+
+        for (int i = 0; i < 300; i++) {
+            runOperation(poller, PAGE_PROGRAM_NANOS);
+        }
+        long estimate = poller.getEstimateNanos(BusyPoller.Operation.PAGE_PROGRAM);
+        assertTrue(estimate > PAGE_PROGRAM_NANOS / 2 && estimate < PAGE_PROGRAM_NANOS * 2,
+                   "estimate " + estimate + " ns for a " + PAGE_PROGRAM_NANOS + " ns operation");
+    }
+
+    @Test
+    public void estimateFollowsFasterOperations() throws Exception {
+        BusyPoller poller = new BusyPoller();
+
+        for (int i = 0; i < 50; i++) {
+            runOperation(poller, 4000000L);
+        }
+        for (int i = 0; i < 300; i++) {
+            runOperation(poller, 500000L);
+        }
+        long estimate = poller.getEstimateNanos(BusyPoller.Operation.PAGE_PROGRAM);
+        assertTrue(estimate < 1000000L, "estimate " + estimate + " ns for a 500 us operation");
+    }
+
+    @Test
+    public void estimateStaysWithinTheDatasheetMaximum() throws Exception {
+        BusyPoller poller = new BusyPoller();
+
+        // Slower than the datasheet says
+        for (int i = 0; i < 20; i++) {
+            runOperation(poller, 8000000L);
+        }
+        long estimate = poller.getEstimateNanos(BusyPoller.Operation.PAGE_PROGRAM);
+        assertTrue(estimate <= BusyPoller.Operation.PAGE_PROGRAM.getMaxNanos(), "estimate " + estimate + " ns");
+    }
+
+    @Test
+    public void sleepTimeIsTheTimeActuallySlept() throws Exception {
+        BusyPoller poller = new BusyPoller();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            runOperation(poller, PAGE_PROGRAM_NANOS);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(poller.getSleepNanos() <= elapsed, "slept " + poller.getSleepNanos() + " ns in " + elapsed + " ns");
+    }
+
+    @Test
+    public void estimateConvergesNearPageProgramTimeOnTheSimulator(@TempDir File directory) throws Exception {
+        File file = SimulatorBoard.writeImage(directory, "image.bin", SimulatorBoard.randomImage(IMAGE_SIZE, 1));
+
+        try (SimulatorBoard board = new SimulatorBoard("busy-poller")) {
+            MimasV2ConfigDownloader downloader = board.newDownloader(file, false);
+            BusyPoller poller = downloader.getBusyPoller();
+
+            // A second session must not start from an estimate inflated by the first
+            for (int run = 1; run <= 2; run++) {
+                downloader.run();
+                assertTrue(downloader.isSuccessful(), "run " + run + ": " + board.getErrors());
+
+                // The estimate includes the latency of the link, but not an oversleep per page
+                long estimate = poller.getEstimateNanos(BusyPoller.Operation.PAGE_PROGRAM);
+                assertTrue(estimate <= BusyPoller.Operation.PAGE_PROGRAM.getMaxNanos(), "estimate " + estimate + " ns");
+                assertTrue(estimate < PAGE_PROGRAM_NANOS + 3 * MimasV2Simulator.DEFAULT_USB_LATENCY_NANOS,
+                           "estimate " + estimate + " ns after " + run + " run(s)");
+            }
+        }
+    }
+
+    /*
+     * Waits for an operation that takes operationNanos, as the flash would
+     */
+    private static void runOperation(BusyPoller poller, long operationNanos) throws Exception {
+        long start = System.nanoTime();
+        poller.waitUntilReady(BusyPoller.Operation.PAGE_PROGRAM, start,
+                              () -> (System.nanoTime() - start < operationNanos)? BusyPoller.STATUS_WIP : 0);
+    }
+
+    private static final long PAGE_PROGRAM_NANOS = 1400000L;
+    private static final int IMAGE_SIZE = 2 * MimasV2ConfigDownloader.M25P16_SECTOR_SIZE;
+}
@@ -0,0 +1,92 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Batched command frames are written in chunks the board firmware accepts, and
+ * reads without a packet receiver only take buffer packets.
+ *
+ * @author ideras
+ */
+public class CommandBatcherTest {
+
+    @Test
+    public void writesNoMoreThanTheTransactionSize() throws Exception {
+        RecordingStream out = new RecordingStream();
+        CommandBatcher batcher = new CommandBatcher(out, 4 * MimasV2ConfigDownloader.CDC_DATA_OUT_EP_SIZE,
+                                                    MimasV2ConfigDownloader.MAX_TRANSACTION_SIZE);
+        byte[] frames = SimulatorBoard.randomImage(10 * MimasV2ConfigDownloader.CDC_DATA_OUT_EP_SIZE, 4);
+
+        for (int i = 0; i < 10; i++) {
+            batcher.queue(frames, i * MimasV2ConfigDownloader.CDC_DATA_OUT_EP_SIZE, MimasV2ConfigDownloader.CDC_DATA_OUT_EP_SIZE);
+        }
+        batcher.queue(frames, 0, frames.length);
+        batcher.flush();
+
+        assertTrue(out.largestWrite <= MimasV2ConfigDownloader.MAX_TRANSACTION_SIZE);
+        byte[] written = out.toByteArray();
+        assertEquals(2 * frames.length, written.length);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals(frames[i], written[i]);
+            assertEquals(frames[i], written[frames.length + i]);
+        }
+    }
+
+    @Test
+    public void rawReadsSkipStatusPackets() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("batcher-raw")) {
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+            downloader.setEventDrivenReceive(false);
+
+            // The status packets of these commands are still in the stream
+            downloader.spiOpen();
+            downloader.toggleCS();
+            downloader.spiSendByte(MimasV2ConfigDownloader.SPI_FLASH_READ_ID_9F);
+
+            assertArrayEquals(new byte[] {0x20, 0x20, 0x15}, downloader.getBytes(3));
+        }
+    }
+
+    private static class RecordingStream extends ByteArrayOutputStream {
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) {
+            largestWrite = Math.max(largestWrite, length);
+            super.write(data, offset, length);
+        }
+
+        int largestWrite;
+    }
+}
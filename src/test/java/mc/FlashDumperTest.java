@@ -0,0 +1,109 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.nio.file.Files;
+import mc.gui.ProgrammingProgressListener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Dumps of the simulated flash, complete or failed.
+ *
+ * @author ideras
+ */
+public class FlashDumperTest {
+
+    @Test
+    public void dumpsTheFlashRange(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("dump")) {
+            byte[] data = SimulatorBoard.randomImage(10000, 5);
+            board.getFlash().write(0x1000, data, 0, data.length);
+            File file = new File(directory, "dump.bin");
+
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+            FlashDumper.DumpResult result = new FlashDumper(downloader, LISTENER).dump(0x1000, data.length, file);
+            // The release frames are sent, give the board time to take them
+            Thread.sleep(50);
+
+            assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+            assertEquals(data.length, result.getLength());
+            assertEquals(1, board.getSimulator().getConfigurationCount());
+        }
+    }
+
+    @Test
+    public void failedDumpReleasesTheBoardAndKeepsTheFile(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("dump-fail")) {
+            byte[] previous = SimulatorBoard.randomImage(100, 6);
+            File file = SimulatorBoard.writeImage(directory, "dump.bin", previous);
+
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+            downloader.setResponseTimeout(50);
+            board.getSimulator().setUsbLatencyNanos(200000000L);
+
+            assertThrows(ConfiguratorException.class, () -> new FlashDumper(downloader, LISTENER).dump(0, 4096, file));
+            Thread.sleep(400);
+
+            assertEquals(1, board.getSimulator().getConfigurationCount());
+            assertArrayEquals(previous, Files.readAllBytes(file.toPath()));
+            assertEquals(1, directory.list().length);
+        }
+    }
+
+    private static final ProgrammingProgressListener LISTENER = new ProgrammingProgressListener() {
+        @Override
+        public void initProgress(int maxValue) {
+        }
+
+        @Override
+        public void updateProgress(int value) {
+        }
+
+        @Override
+        public void logMessage(String message) {
+        }
+
+        @Override
+        public void updateTitle(String message) {
+        }
+
+        @Override
+        public void errorMessage(String message) {
+        }
+
+        @Override
+        public void programmingDone() {
+        }
+    };
+}
@@ -0,0 +1,79 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import mc.sim.MimasV2Simulator;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A calibration, failed or not, leaves the board and the downloader ready for
+ * the programming session.
+ *
+ * @author ideras
+ */
+public class LinkCalibratorTest {
+
+    @Test
+    public void failedCalibrationReleasesTheBoard() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("calibrate-fail")) {
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+            int batchFrames = downloader.getBatchFrames();
+
+            // The board answers after the timeout
+            board.getSimulator().setUsbLatencyNanos(200000000L);
+            downloader.setResponseTimeout(50);
+            assertThrows(ConfiguratorException.class, () -> new LinkCalibrator(downloader).calibrate(SerialPorts.DEFAULT_BAUD_RATE));
+            assertEquals(batchFrames, downloader.getBatchFrames());
+
+            board.getSimulator().setUsbLatencyNanos(MimasV2Simulator.DEFAULT_USB_LATENCY_NANOS);
+            downloader.setResponseTimeout(MimasV2ConfigDownloader.RESPONSE_TIMEOUT);
+            Thread.sleep(400);
+
+            // PROGB was released and the session can use the link
+            assertEquals(1, board.getSimulator().getConfigurationCount());
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, downloader.readFlashId());
+        }
+    }
+
+    @Test
+    public void calibrationReleasesTheBoard() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("calibrate")) {
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+
+            LinkProfile profile = new LinkCalibrator(downloader).calibrate(SerialPorts.DEFAULT_BAUD_RATE);
+            profile.applyTo(downloader);
+            Thread.sleep(50);
+
+            assertEquals(1, board.getSimulator().getConfigurationCount());
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, downloader.readFlashId());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static mc.MimasV2ConfigDownloader.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.InputStream;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The frames of the PIC18 protocol the configurator doesn't send itself.
+ *
+ * @author ideras
+ */
+public class MimasV2SimulatorTest {
+
+    @Test
+    public void readsTheIoPins() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("sim-io")) {
+            byte[] packet = exchange(board, CONFIG_OUT_PACKET_SPI_SET_IO_VALUE, CONFIG_IO_PIN_PROGB, 0);
+            assertEquals(CONFIG_IN_PACKET_STATUS, packet[1]);
+
+            packet = exchange(board, CONFIG_OUT_PACKET_SPI_GET_IO_VALUE, CONFIG_IO_PIN_DONE);
+            assertEquals(CONFIG_IN_PACKET_BUFFER, packet[1]);
+            assertEquals(0, packet[IN_PACKET_DATA_OFFSET]);
+
+            exchange(board, CONFIG_OUT_PACKET_SPI_SET_IO_VALUE, CONFIG_IO_PIN_PROGB, 1);
+            packet = exchange(board, CONFIG_OUT_PACKET_SPI_GET_ALL_IO_VALUES);
+            assertEquals(8, packet[3]);
+            assertEquals(1, packet[IN_PACKET_DATA_OFFSET + CONFIG_IO_PIN_DONE]);
+            assertEquals(1, packet[IN_PACKET_DATA_OFFSET + CONFIG_IO_PIN_PROGB]);
+        }
+    }
+
+    @Test
+    public void getCharReadsTheFlash() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("sim-getchar")) {
+            exchange(board, CONFIG_OUT_PACKET_SPI_OPEN);
+            exchange(board, CONFIG_OUT_PACKET_SPI_SET_IO_VALUE, CONFIG_IO_PIN_CS, 0);
+            exchange(board, CONFIG_OUT_PACKET_SPI_PUT_CHAR, SPI_FLASH_READ_ID_9F);
+
+            byte[] packet = exchange(board, CONFIG_OUT_PACKET_SPI_GET_CHAR);
+            assertEquals(CONFIG_IN_PACKET_BUFFER, packet[1]);
+            assertEquals(1, packet[3]);
+            assertEquals(0x20, packet[IN_PACKET_DATA_OFFSET]);
+        }
+    }
+
+    @Test
+    public void framesAtAnAddressAreErrors() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("sim-ataddress")) {
+            byte[] packet = exchange(board, CONFIG_OUT_PACKET_SPI_GETSTRING_ATADDRESS);
+            assertEquals(CONFIG_IN_PACKET_STATUS, packet[1]);
+            assertEquals(1, packet[3]);
+        }
+    }
+
+    /*
+     * Sends a frame with the given packet type and arguments, and waits for the answer
+     */
+    private static byte[] exchange(SimulatorBoard board, int type, int... arguments) throws Exception {
+        byte[] frame = new byte[CDC_DATA_OUT_EP_SIZE];
+        frame[0] = 0x7e;
+        frame[1] = (byte) type;
+        frame[2] = 0x01;
+        for (int i = 0; i < arguments.length; i++) {
+            frame[3 + i] = (byte) arguments[i];
+        }
+        board.getSimulator().getOutputStream().write(frame);
+
+        InputStream in = board.getSimulator().getInputStream();
+        byte[] packet = new byte[CDC_DATA_IN_EP_SIZE];
+        int count = 0;
+        while (count < packet.length) {
+            int n = in.read(packet, count, packet.length - count);
+            assertEquals(true, n > 0, "no answer to packet type " + type);
+            count += n;
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import mc.sim.MimasV2Simulator;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A transport has a single packet receiver, released when its downloader is
+ * done with the port.
+ *
+ * @author ideras
+ */
+public class PacketReceiverTest {
+
+    @Test
+    public void detachedTransportCanBeUsedByAnotherDownloader() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("receiver-detach")) {
+            MimasV2ConfigDownloader first = board.newDownloader(null, false);
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, first.readFlashId());
+            first.detach();
+
+            MimasV2ConfigDownloader second = board.newDownloader(null, false);
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, second.readFlashId());
+        }
+    }
+
+    @Test
+    public void transportListenedToByAnotherDownloaderIsAnError() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("receiver-busy")) {
+            MimasV2ConfigDownloader first = board.newDownloader(null, false);
+            first.readFlashId();
+
+            MimasV2ConfigDownloader second = board.newDownloader(null, false);
+            assertThrows(IOException.class, second::readFlashId);
+        }
+    }
+
+    @Test
+    public void keepsOnlyPacketsOfTheExpectedType() {
+        PacketReceiver receiver = new PacketReceiver(4);
+        byte[] packet = new byte[PacketReceiver.PACKET_SIZE];
+
+        receiver.bufferRequested();
+        receiver.feed(packet(MimasV2ConfigDownloader.CONFIG_IN_PACKET_STATUS, 1), 0, PacketReceiver.PACKET_SIZE);
+        receiver.feed(packet(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, 2), 0, PacketReceiver.PACKET_SIZE);
+
+        assertEquals(true, receiver.receive(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, packet, 100));
+        assertEquals(2, packet[2]);
+        assertEquals(1, receiver.getDroppedCount());
+    }
+
+    @Test
+    public void answerAfterATimeoutAndClearIsTaken() {
+        PacketReceiver receiver = new PacketReceiver(4);
+        byte[] packet = new byte[PacketReceiver.PACKET_SIZE];
+
+        receiver.bufferRequested();
+        assertEquals(false, receiver.receive(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, packet, 10));
+        receiver.clear();
+
+        for (int i = 1; i <= 3; i++) {
+            receiver.bufferRequested();
+            receiver.feed(packet(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, i), 0, PacketReceiver.PACKET_SIZE);
+            assertEquals(true, receiver.receive(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, packet, 100));
+            assertEquals(i, packet[2]);
+        }
+    }
+
+    @Test
+    public void lateAnswerIsNotTakenForTheNextRequest() {
+        PacketReceiver receiver = new PacketReceiver(4);
+        byte[] packet = new byte[PacketReceiver.PACKET_SIZE];
+
+        receiver.bufferRequested();
+        assertEquals(false, receiver.receive(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, packet, 10));
+
+        receiver.bufferRequested();
+        receiver.feed(packet(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, 1), 0, PacketReceiver.PACKET_SIZE);
+        receiver.feed(packet(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, 2), 0, PacketReceiver.PACKET_SIZE);
+
+        assertEquals(true, receiver.receive(MimasV2ConfigDownloader.CONFIG_IN_PACKET_BUFFER, packet, 100));
+        assertEquals(2, packet[2]);
+        assertEquals(1, receiver.getDroppedCount());
+    }
+
+    @Test
+    public void downloaderRecoversFromAnUnansweredRequest() throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("receiver-timeout")) {
+            MimasV2ConfigDownloader downloader = board.newDownloader(null, false);
+            downloader.setResponseTimeout(50);
+
+            // The board answers the flash ID read after the timeout
+            board.getSimulator().setUsbLatencyNanos(200000000L);
+            assertThrows(ConfiguratorException.class, downloader::readFlashId);
+            board.getSimulator().setUsbLatencyNanos(MimasV2Simulator.DEFAULT_USB_LATENCY_NANOS);
+            Thread.sleep(400);
+
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, downloader.readFlashId());
+            assertEquals(MimasV2ConfigDownloader.DEV_ID_MICRON_M25P16, downloader.readFlashId());
+        }
+    }
+
+    private static byte[] packet(int type, int value) {
+        byte[] packet = new byte[PacketReceiver.PACKET_SIZE];
+        packet[0] = 0x7e;
+        packet[1] = (byte) type;
+        packet[2] = (byte) value;
+        return packet;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The pipeline must hand every page to the consumer, and end even when
+ * preparing a page fails.
+ *
+ * @author ideras
+ */
+public class PageFramePipelineTest {
+
+    @Test
+    public void skipsBlankPages() throws Exception {
+        byte[] image = SimulatorBoard.randomImage(8 * MimasV2ConfigDownloader.M25P16_PAGE_SIZE, 2);
+        Arrays.fill(image, 2 * MimasV2ConfigDownloader.M25P16_PAGE_SIZE, 4 * MimasV2ConfigDownloader.M25P16_PAGE_SIZE, (byte) 0xFF);
+
+        int pages = 0;
+        try (PageFramePipeline pipeline = new PageFramePipeline(FlashImage.wrap(image), address -> true, 2)) {
+            pipeline.start();
+
+            PageFramePipeline.PreparedPage page;
+            while ((page = pipeline.take()) != null) {
+                pages++;
+                pipeline.release(page);
+            }
+            assertEquals(2, pipeline.getBlankPages());
+            assertNull(pipeline.take());
+        }
+        assertEquals(6, pages);
+    }
+
+    @Test
+    public void endsWhenTheImageFails() throws Exception {
+        FlashImage image = new FlashImage() {
+            @Override
+            public int size() {
+                return 4 * MimasV2ConfigDownloader.M25P16_PAGE_SIZE;
+            }
+
+            @Override
+            public void read(int address, byte[] buffer, int offset, int length) {
+                throw new IllegalStateException("image gone");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (PageFramePipeline pipeline = new PageFramePipeline(image, address -> true, 2)) {
+            pipeline.start();
+
+            IOException ex = assertThrows(IOException.class, pipeline::take);
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void endsWhenTheFilterFails() throws Exception {
+        byte[] image = SimulatorBoard.randomImage(4 * MimasV2ConfigDownloader.M25P16_PAGE_SIZE, 3);
+
+        try (PageFramePipeline pipeline = new PageFramePipeline(FlashImage.wrap(image), address -> {
+            if (address > 0) {
+                throw new IllegalArgumentException("bad page " + address);
+            }
+            return true;
+        }, 2)) {
+            pipeline.start();
+
+            pipeline.release(pipeline.take());
+            assertThrows(IOException.class, pipeline::take);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A prepared image is opened only on the contents it was prepared from.
+ *
+ * @author ideras
+ */
+public class PreparedImageTest {
+
+    @Test
+    public void opensThePreparedContents(@TempDir File directory) throws Exception {
+        byte[] data = SimulatorBoard.randomImage(1000, 1);
+        File file = SimulatorBoard.writeImage(directory, "image.bin", data);
+        PreparedImage prepared = new PreparedImageCache(1).prepare(file);
+
+        try (FlashImage image = prepared.open(file)) {
+            byte[] read = new byte[data.length];
+            image.read(0, read, 0, read.length);
+            assertEquals(data.length, image.size());
+            assertEquals(data[999], read[999]);
+        }
+    }
+
+    @Test
+    public void fileChangedAfterItWasPreparedIsAnError(@TempDir File directory) throws Exception {
+        File file = SimulatorBoard.writeImage(directory, "image.bin", SimulatorBoard.randomImage(1000, 1));
+        PreparedImage prepared = new PreparedImageCache(1).prepare(file);
+
+        SimulatorBoard.writeImage(directory, "image.bin", SimulatorBoard.randomImage(1000, 2));
+        assertThrows(IOException.class, () -> prepared.open(file).close());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * An interrupted session is resumed only while the flash still holds what the
+ * journal recorded.
+ *
+ * @author ideras
+ */
+public class ProgrammingJournalTest {
+
+    @Test
+    public void resumesAnInterruptedSession(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("journal-resume")) {
+            byte[] image = interrupt(board, directory);
+            int erases = board.getFlash().getSectorEraseCount();
+            int pages = board.getFlash().getPageProgramCount();
+
+            resume(board, directory, image);
+            assertTrue(board.getLog().stream().anyMatch(line -> line.startsWith("Resuming previous session")));
+            assertEquals(erases, board.getFlash().getSectorEraseCount());
+            assertEquals(image.length / MimasV2ConfigDownloader.M25P16_PAGE_SIZE, board.getFlash().getPageProgramCount());
+        }
+    }
+
+    @Test
+    public void changedPageProgrammedDiscardsTheJournal(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("journal-programmed")) {
+            byte[] image = interrupt(board, directory);
+
+            // Page 0 was programmed by the interrupted session
+            board.getFlash().write(0, new byte[16], 0, 16);
+
+            resume(board, directory, image);
+            assertTrue(board.getLog().contains(STARTING_OVER));
+        }
+    }
+
+    @Test
+    public void pageLeftToProgramNotBlankDiscardsTheJournal(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("journal-blank")) {
+            byte[] image = interrupt(board, directory);
+
+            // The first page of the second sector wasn't programmed yet
+            board.getFlash().write(MimasV2ConfigDownloader.M25P16_SECTOR_SIZE, new byte[16], 0, 16);
+
+            resume(board, directory, image);
+            assertTrue(board.getLog().contains(STARTING_OVER));
+        }
+    }
+
+    /*
+     * Programs an image of two sectors and stops the session halfway through
+     */
+    static byte[] interrupt(SimulatorBoard board, File directory) throws Exception {
+        byte[] image = SimulatorBoard.randomImage(2 * MimasV2ConfigDownloader.M25P16_SECTOR_SIZE, 13);
+        File file = SimulatorBoard.writeImage(directory, "image.bin", image);
+
+        MimasV2ConfigDownloader downloader = newDownloader(board, file, directory);
+        board.setInterruptAt(MimasV2ConfigDownloader.M25P16_SECTOR_SIZE / 2);
+        assertThrows(SimulatorBoard.InterruptedSession.class, downloader::run);
+        downloader.detach();
+        board.setInterruptAt(-1);
+        return image;
+    }
+
+    /*
+     * Runs the session again on the same board and checks the result
+     */
+    static void resume(SimulatorBoard board, File directory, byte[] image) throws Exception {
+        MimasV2ConfigDownloader downloader = newDownloader(board, new File(directory, "image.bin"), directory);
+        downloader.run();
+        downloader.detach();
+
+        assertEquals(0, board.getErrors().size(), board.getErrors().toString());
+        assertArrayEquals(image, board.readFlash(0, image.length));
+    }
+
+    private static MimasV2ConfigDownloader newDownloader(SimulatorBoard board, File file, File directory) {
+        MimasV2ConfigDownloader downloader = board.newDownloader(file, true);
+        downloader.setJournalDirectory(new File(directory, "journal"));
+        downloader.setBoardId("board");
+        return downloader;
+    }
+
+    static final String STARTING_OVER = "The flash doesn't match the previous session, starting over";
+}
@@ -0,0 +1,137 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Whole programming sessions on the simulated board: what ends up in the flash
+ * and what the session skipped.
+ *
+ * @author ideras
+ */
+public class ProgrammingSessionTest {
+
+    @Test
+    public void programsAndVerifiesTheImage(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("session-program")) {
+            // The last page is a partial one
+            byte[] image = SimulatorBoard.randomImage(2 * SECTOR_SIZE + 1000, 1);
+            File file = SimulatorBoard.writeImage(directory, "image.bin", image);
+
+            MimasV2ConfigDownloader downloader = board.newDownloader(file, true);
+            downloader.run();
+
+            assertEquals(0, board.getErrors().size(), board.getErrors().toString());
+            assertTrue(downloader.isSuccessful());
+            assertTrue(board.getLog().contains("Flash verification successful..."));
+            assertArrayEquals(image, board.readFlash(0, image.length));
+            assertEquals(3, board.getFlash().getSectorEraseCount());
+            assertEquals((image.length + PAGE_SIZE - 1) / PAGE_SIZE, board.getFlash().getPageProgramCount());
+        }
+    }
+
+    @Test
+    public void differentialProgrammingUpdatesOnlyTheChangedSectors(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("session-differential")) {
+            byte[] image = SimulatorBoard.randomImage(3 * SECTOR_SIZE, 2);
+            MimasV2ConfigDownloader downloader = board.newDownloader(SimulatorBoard.writeImage(directory, "image.bin", image), false);
+            downloader.run();
+            downloader.detach();
+
+            byte[] changed = Arrays.copyOf(image, image.length);
+            changed[SECTOR_SIZE + 100] ^= 0x55;
+            int erases = board.getFlash().getSectorEraseCount();
+            int pages = board.getFlash().getPageProgramCount();
+
+            downloader = board.newDownloader(SimulatorBoard.writeImage(directory, "changed.bin", changed), true);
+            downloader.setDifferential(true);
+            downloader.run();
+
+            assertEquals(0, board.getErrors().size(), board.getErrors().toString());
+            assertTrue(board.getLog().contains("1 of 3 sectors changed"));
+            assertEquals(erases + 1, board.getFlash().getSectorEraseCount());
+            assertEquals(pages + SECTOR_SIZE / PAGE_SIZE, board.getFlash().getPageProgramCount());
+            assertArrayEquals(changed, board.readFlash(0, changed.length));
+        }
+    }
+
+    @Test
+    public void sectorsHoldingTheImageAreSkipped(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("session-state")) {
+            byte[] image = SimulatorBoard.randomImage(2 * SECTOR_SIZE, 3);
+            File file = SimulatorBoard.writeImage(directory, "image.bin", image);
+            FlashStateCache flashStateCache = new FlashStateCache(new File(directory, "flash-state"));
+
+            MimasV2ConfigDownloader downloader = board.newDownloader(file, false);
+            downloader.setFlashStateCache(flashStateCache);
+            downloader.setBoardId("board");
+            downloader.run();
+            downloader.detach();
+
+            int erases = board.getFlash().getSectorEraseCount();
+            int pages = board.getFlash().getPageProgramCount();
+
+            downloader = board.newDownloader(file, true);
+            downloader.setFlashStateCache(flashStateCache);
+            downloader.setBoardId("board");
+            downloader.run();
+
+            assertEquals(0, board.getErrors().size(), board.getErrors().toString());
+            assertTrue(downloader.isSuccessful());
+            assertEquals(erases, board.getFlash().getSectorEraseCount());
+            assertEquals(pages, board.getFlash().getPageProgramCount());
+            assertArrayEquals(image, board.readFlash(0, image.length));
+        }
+    }
+
+    @Test
+    public void blankPagesAreNotProgrammed(@TempDir File directory) throws Exception {
+        try (SimulatorBoard board = new SimulatorBoard("session-blank")) {
+            byte[] image = SimulatorBoard.randomImage(SECTOR_SIZE, 4);
+            Arrays.fill(image, 0, SECTOR_SIZE / 2, (byte) 0xff);
+
+            MimasV2ConfigDownloader downloader = board.newDownloader(SimulatorBoard.writeImage(directory, "image.bin", image), true);
+            downloader.run();
+
+            assertEquals(0, board.getErrors().size(), board.getErrors().toString());
+            assertEquals(SECTOR_SIZE / 2 / PAGE_SIZE, board.getFlash().getPageProgramCount());
+            assertArrayEquals(image, board.readFlash(0, image.length));
+        }
+    }
+
+    private static final int SECTOR_SIZE = MimasV2ConfigDownloader.M25P16_SECTOR_SIZE;
+    private static final int PAGE_SIZE = MimasV2ConfigDownloader.M25P16_PAGE_SIZE;
+}
@@ -0,0 +1,159 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mc.gui.ProgrammingProgressListener;
+import mc.sim.M25P16Flash;
+import mc.sim.MimasV2Simulator;
+
+/**
+ * A simulated board with a flash of its own for the tests, and the downloader
+ * sessions run on it.  Journals, reports and the flash state cache are off
+ * unless a test turns them on.
+ *
+ * @author ideras
+ */
+class SimulatorBoard implements AutoCloseable {
+
+    SimulatorBoard(String name) {
+        flash = new M25P16Flash();
+        simulator = new MimasV2Simulator(MimasV2Simulator.PORT_PREFIX + name, flash);
+    }
+
+    MimasV2Simulator getSimulator() {
+        return simulator;
+    }
+
+    M25P16Flash getFlash() {
+        return flash;
+    }
+
+    List<String> getLog() {
+        return log.lines;
+    }
+
+    List<String> getErrors() {
+        return log.errors;
+    }
+
+    /*
+     * Makes the sessions stop with an InterruptedSession once they report the
+     * given progress, as if the process died there.  Negative to never stop.
+     */
+    void setInterruptAt(int progress) {
+        log.interruptAt = progress;
+    }
+
+    MimasV2ConfigDownloader newDownloader(File file, boolean verifyFlash) {
+        MimasV2ConfigDownloader downloader = new MimasV2ConfigDownloader(simulator, (file != null)? file.getPath() : null,
+                                                                         log, verifyFlash);
+        downloader.setJournalDirectory(null);
+        downloader.setReportDirectory(null);
+        downloader.setFlashStateCache(null);
+        return downloader;
+    }
+
+    /*
+     * Reads the flash contents directly, without going through the link
+     */
+    byte[] readFlash(int address, int length) {
+        byte[] data = new byte[length];
+        flash.read(address, data, 0, length);
+        return data;
+    }
+
+    static byte[] randomImage(int size, long seed) {
+        byte[] image = new byte[size];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    static File writeImage(File directory, String name, byte[] image) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), image);
+        return file;
+    }
+
+    @Override
+    public void close() {
+        simulator.close();
+    }
+
+    /*
+     * Keeps the messages of the sessions
+     */
+    private static class RecordingListener implements ProgrammingProgressListener {
+
+        @Override
+        public void initProgress(int maxValue) {
+        }
+
+        @Override
+        public void updateProgress(int value) {
+            if (interruptAt >= 0 && value >= interruptAt) {
+                throw new InterruptedSession();
+            }
+        }
+
+        @Override
+        public synchronized void logMessage(String message) {
+            lines.add(message);
+        }
+
+        @Override
+        public void updateTitle(String message) {
+        }
+
+        @Override
+        public synchronized void errorMessage(String message) {
+            errors.add(message);
+            lines.add("ERROR: " + message);
+        }
+
+        @Override
+        public void programmingDone() {
+        }
+
+        private final List<String> lines = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        private volatile int interruptAt = -1;
+    }
+
+    static class InterruptedSession extends RuntimeException {
+    }
+
+    private final M25P16Flash flash;
+    private final MimasV2Simulator simulator;
+    private final RecordingListener log = new RecordingListener();
+}
@@ -0,0 +1,73 @@
+/*
+ [The "BSD licence"]
+ Copyright (c) 2017 Ivan de Jesus Deras (ideras@gmail.com)
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+ 1. Redistributions of source code must retain the above copyright
+    notice, this list of conditions and the following disclaimer.
+ 2. Redistributions in binary form must reproduce the above copyright
+    notice, this list of conditions and the following disclaimer in the
+    documentation and/or other materials provided with the distribution.
+ 3. The name of the author may not be used to endorse or promote products
+    derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package mc.daemon;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import mc.MimasV2ConfigDownloader;
+import mc.SerialPortRegistry;
+import mc.gui.ProgrammingProgressListener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The daemon only takes jobs for the ports it can find.
+ *
+ * @author ideras
+ */
+public class ProgrammingDaemonTest {
+
+    @Test
+    public void knowsTheSystemAndSimulatedPorts(@TempDir File directory) throws Exception {
+        File port = new File(directory, "ttyACM0");
+        port.createNewFile();
+        SerialPortRegistry registry = new SerialPortRegistry(directory.toPath());
+        registry.start();
+
+        try {
+            ProgrammingDaemon daemon = new ProgrammingDaemon(0, 19200, SETUP, registry);
+
+            assertEquals(true, daemon.isKnownPort(port.getPath()));
+            assertEquals(true, daemon.isKnownPort("sim:daemon"));
+            assertEquals(false, daemon.isKnownPort(new File(directory, "ttyACM9").getPath()));
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static final PortSession.Setup SETUP = new PortSession.Setup() {
+        @Override
+        public void configure(MimasV2ConfigDownloader downloader) {
+        }
+
+        @Override
+        public void calibrate(MimasV2ConfigDownloader downloader, ProgrammingProgressListener listener) {
+        }
+    };
+}